@@ -0,0 +1,959 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Translates hot blocks of the block engine into JVM bytecode, so that the
+ * host JIT compiler can optimize them like any other Java method.
+ *
+ * <p>
+ * Each compiled block is a class whose <tt>run()</tt> method executes every
+ * instruction in the block. Guest registers are kept in JVM locals, and are
+ * only written back to the register file when the block exits or one of its
+ * memory accesses throws. Loads and stores still go through the processor's
+ * <tt>readMem()</tt> and <tt>writeMem()</tt>, so they cause exactly the same
+ * exceptions as they would in the interpreter, and the exception handler
+ * written for each access leaves the PC, the registers and the delayed load in
+ * the state the interpreter would have left them.
+ *
+ * <p>
+ * Only blocks made entirely of instructions that have a specialized handler,
+ * ending (if at all) with a non-linking branch or a jump and its delay slot,
+ * are compiled. Classes are defined as hidden classes through
+ * <tt>MethodHandles.Lookup</tt>, since the security manager does not permit
+ * class loaders. Hidden classes need Java 15; on older JVMs no blocks are
+ * compiled.
+ */
+final class BlockCompiler {
+    /**
+     * Compile the specified block.
+     *
+     * @param	block	the decoded instructions in the block.
+     * @return	the compiled block, or <tt>null</tt> if the block cannot be
+     *		compiled.
+     */
+    static Processor.CompiledBlock compile(Processor.Decoded[] block) {
+	if (!supported || !compilable(block))
+	    return null;
+
+	byte[] classFile = new BlockCompiler(block).assemble();
+	if (classFile == null)
+	    return null;
+
+	try {
+	    MethodHandle constructor = define(classFile);
+
+	    Lib.debug(dbgCompiler, "compiled block of " + block.length +
+		      " instructions into " + classFile.length + " bytes");
+
+	    return (Processor.CompiledBlock) constructor.invoke();
+	}
+	catch (Throwable e) {
+	    Lib.debug(dbgCompiler, "unable to define compiled block: " + e);
+	    supported = false;
+	    return null;
+	}
+    }
+
+    /**
+     * Test whether every instruction in a block can be compiled, and whether
+     * the only control transfer is in the right place.
+     */
+    private static boolean compilable(Processor.Decoded[] block) {
+	int n = block.length;
+
+	for (int i=0; i<n; i++) {
+	    Processor.Decoded decoded = block[i];
+
+	    switch (decoded.operation) {
+	    case Processor.Mips.ADD:
+	    case Processor.Mips.SUB:
+	    case Processor.Mips.SLL:
+	    case Processor.Mips.SRA:
+	    case Processor.Mips.SRL:
+	    case Processor.Mips.SLT:
+	    case Processor.Mips.AND:
+	    case Processor.Mips.OR:
+	    case Processor.Mips.NOR:
+	    case Processor.Mips.XOR:
+	    case Processor.Mips.LUI:
+		if (Lib.test(Processor.Mips.OVERFLOW, decoded.flags))
+		    return false;
+		break;
+	    case Processor.Mips.BEQ:
+	    case Processor.Mips.BNE:
+	    case Processor.Mips.BLEZ:
+	    case Processor.Mips.BGTZ:
+	    case Processor.Mips.BLTZ:
+	    case Processor.Mips.BGEZ:
+		if (Lib.test(Processor.Mips.LINK, decoded.flags))
+		    return false;
+		break;
+	    case Processor.Mips.LOAD:
+	    case Processor.Mips.STORE:
+	    case Processor.Mips.JUMP:
+	    case Processor.Mips.MFLO:
+	    case Processor.Mips.MFHI:
+	    case Processor.Mips.MULT:
+		break;
+	    default:
+		return false;
+	    }
+
+	    // a branch must be followed by its delay slot, and nothing else
+	    if (Lib.test(Processor.Mips.BRANCH, decoded.flags) && i != n-2)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Test whether this JVM can define compiled blocks.
+     */
+    static boolean isSupported() {
+	return supported;
+    }
+
+    /**
+     * Define a class in this package, and return its constructor. Method
+     * handles are used rather than reflection, because reflection eventually
+     * creates a class loader of its own, which the security manager forbids.
+     */
+    private static MethodHandle define(byte[] classFile) throws Throwable {
+	MethodHandles.Lookup lookup = (MethodHandles.Lookup)
+	    defineHiddenClass.invoke(MethodHandles.lookup(), classFile, true,
+				     noOptions);
+
+	return lookup.findConstructor(lookup.lookupClass(),
+				      MethodType.methodType(void.class));
+    }
+
+    @SuppressWarnings("fallthrough")
+    private BlockCompiler(Processor.Decoded[] block) {
+	this.block = block;
+
+	int n = block.length;
+	branch = (n >= 2 && Lib.test(Processor.Mips.BRANCH, block[n-2].flags));
+
+	// every register that the block touches gets a local, loaded on entry
+	int next = firstRegisterLocal;
+	for (int i=0; i<n; i++) {
+	    Processor.Decoded decoded = block[i];
+
+	    next = use(decoded.rs, next);
+	    next = use(decoded.rt, next);
+	    if (decoded.dstReg > 0) {
+		next = use(decoded.dstReg, next);
+		written[decoded.dstReg] = true;
+	    }
+
+	    switch (decoded.operation) {
+	    case Processor.Mips.MULT:
+		written[Processor.regLo] = true;
+		written[Processor.regHi] = true;
+		// fall through
+	    case Processor.Mips.MFLO:
+	    case Processor.Mips.MFHI:
+		next = use(Processor.regLo, next);
+		next = use(Processor.regHi, next);
+		break;
+	    }
+	}
+	maxLocals = next;
+    }
+
+    private int use(int reg, int next) {
+	if (reg == 0 || local[reg] != 0)
+	    return next;
+
+	local[reg] = next;
+	return next+1;
+    }
+
+    /**
+     * Generate the class file for the block.
+     *
+     * @return	the class file, or <tt>null</tt> if the method would be too
+     *		large.
+     */
+    private byte[] assemble() {
+	for (int reg=1; reg<local.length; reg++) {
+	    if (local[reg] != 0) {
+		op(ALOAD_2);
+		pushInt(reg);
+		op(IALOAD);
+		store(local[reg]);
+	    }
+	}
+	pushInt(0);
+	store(loadValueLocal);
+	pushInt(0);
+	store(nextPCLocal);
+
+	for (int i=0; i<block.length; i++)
+	    translate(i);
+
+	exit(block.length, branch);
+
+	// the handlers for memory accesses go after the body
+	for (int i=0; i<handlers.size(); i++) {
+	    int[] handler = handlers.get(i);
+	    handler[2] = length;
+
+	    op(ASTORE);
+	    u1(exceptionLocal);
+	    spill(handler[4]);
+	    setPC(handler[3], branch && handler[3] == block.length-1);
+	    op(ALOAD);
+	    u1(exceptionLocal);
+	    op(ATHROW);
+	}
+
+	// keep every jump offset within a signed 16-bit displacement
+	if (length > Short.MAX_VALUE)
+	    return null;
+
+	try {
+	    return classFile();
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+    }
+
+    private void translate(int i) {
+	Processor.Decoded decoded = block[i];
+
+	switch (decoded.operation) {
+	case Processor.Mips.LOAD:
+	    op(ALOAD_1);
+	    readReg(decoded.rs);
+	    pushInt(decoded.imm);
+	    op(IADD);
+	    pushInt(decoded.size);
+	    memoryAccess(i, "compiledRead", "(II)I");
+	    finishLoad();
+	    // readMem() returns sign-extended bytes and halfwords already
+	    if (decoded.rt == 0) {
+		op(POP);
+	    }
+	    else {
+		store(loadValueLocal);
+		pendingLoad = decoded.rt;
+	    }
+	    break;
+
+	case Processor.Mips.STORE:
+	    op(ALOAD_1);
+	    readReg(decoded.rs);
+	    pushInt(decoded.imm);
+	    op(IADD);
+	    pushInt(decoded.size);
+	    readReg(decoded.rt);
+	    memoryAccess(i, "compiledWrite", "(III)Z");
+	    finishLoad();
+	    if (i == block.length-1) {
+		op(POP);
+	    }
+	    else {
+		// a store into code ends the block after this instruction
+		int skip = jump(IFEQ);
+		exit(i+1, false);
+		patch(skip);
+	    }
+	    break;
+
+	case Processor.Mips.BEQ:
+	case Processor.Mips.BNE:
+	case Processor.Mips.BLEZ:
+	case Processor.Mips.BGTZ:
+	case Processor.Mips.BLTZ:
+	case Processor.Mips.BGEZ:
+	    translateBranch(i, decoded);
+	    break;
+
+	case Processor.Mips.JUMP:
+	    if (decoded.format == Processor.Mips.RFMT) {
+		readReg(decoded.rs);
+	    }
+	    else {
+		pushPC(i+1);
+		pushInt(0xF0000000);
+		op(IAND);
+		pushInt(decoded.target << 2);
+		op(IOR);
+	    }
+	    finishLoad();
+	    store(nextPCLocal);
+	    if (Lib.test(Processor.Mips.LINK, decoded.flags) &&
+		decoded.dstReg != 0) {
+		pushPC(i+2);
+		writeReg(decoded.dstReg);
+	    }
+	    break;
+
+	case Processor.Mips.MFLO:
+	case Processor.Mips.MFHI:
+	    readReg(decoded.operation == Processor.Mips.MFLO ?
+		    Processor.regLo : Processor.regHi);
+	    finishLoad();
+	    writeReg(decoded.dstReg);
+	    break;
+
+	case Processor.Mips.MULT:
+	    boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, decoded.flags);
+	    readReg(decoded.rs);
+	    toLong(unsigned);
+	    readReg(decoded.rt);
+	    toLong(unsigned);
+	    op(LMUL);
+	    op(DUP2);
+	    op(L2I);
+	    store(local[Processor.regLo]);
+	    pushInt(32);
+	    op(LSHR);
+	    op(L2I);
+	    store(local[Processor.regHi]);
+	    finishLoad();
+	    break;
+
+	default:
+	    translateArithmetic(decoded);
+	    break;
+	}
+    }
+
+    private void translateArithmetic(Processor.Decoded decoded) {
+	int operation = decoded.operation;
+
+	switch (operation) {
+	case Processor.Mips.LUI:
+	    pushInt(decoded.imm << 16);
+	    break;
+	case Processor.Mips.SLL:
+	case Processor.Mips.SRA:
+	case Processor.Mips.SRL:
+	    // the JVM masks the shift amount to five bits, as the handlers do;
+	    // SRL is arithmetic in the interpreter too
+	    pushSrc2(decoded);
+	    pushSrc1(decoded);
+	    op(operation == Processor.Mips.SLL ? ISHL : ISHR);
+	    break;
+	case Processor.Mips.SLT:
+	    // compare as longs, where the difference cannot overflow;
+	    // flipping the sign bits turns an unsigned compare into a signed one
+	    boolean unsigned = Lib.test(Processor.Mips.UNSIGNED, decoded.flags);
+	    pushSrc1(decoded);
+	    if (unsigned) {
+		pushInt(0x80000000);
+		op(IXOR);
+	    }
+	    op(I2L);
+	    pushSrc2(decoded);
+	    if (unsigned) {
+		pushInt(0x80000000);
+		op(IXOR);
+	    }
+	    op(I2L);
+	    op(LSUB);
+	    pushInt(63);
+	    op(LUSHR);
+	    op(L2I);
+	    break;
+	default:
+	    pushSrc1(decoded);
+	    pushSrc2(decoded);
+	    switch (operation) {
+	    case Processor.Mips.ADD:
+		op(IADD);
+		break;
+	    case Processor.Mips.SUB:
+		op(ISUB);
+		break;
+	    case Processor.Mips.AND:
+		op(IAND);
+		break;
+	    case Processor.Mips.OR:
+		op(IOR);
+		break;
+	    case Processor.Mips.XOR:
+		op(IXOR);
+		break;
+	    default:
+		op(IOR);
+		pushInt(-1);
+		op(IXOR);
+		break;
+	    }
+	    break;
+	}
+
+	finishLoad();
+	writeReg(decoded.dstReg);
+    }
+
+    private void translateBranch(int i, Processor.Decoded decoded) {
+	int notTaken;
+
+	readReg(decoded.rs);
+	switch (decoded.operation) {
+	case Processor.Mips.BEQ:
+	    readReg(decoded.rt);
+	    finishLoad();
+	    notTaken = jump(IF_ICMPNE);
+	    break;
+	case Processor.Mips.BNE:
+	    readReg(decoded.rt);
+	    finishLoad();
+	    notTaken = jump(IF_ICMPEQ);
+	    break;
+	case Processor.Mips.BGEZ:
+	    finishLoad();
+	    notTaken = jump(IFLT);
+	    break;
+	case Processor.Mips.BGTZ:
+	    finishLoad();
+	    notTaken = jump(IFLE);
+	    break;
+	case Processor.Mips.BLEZ:
+	    finishLoad();
+	    notTaken = jump(IFGT);
+	    break;
+	default:
+	    finishLoad();
+	    notTaken = jump(IFGE);
+	    break;
+	}
+
+	op(ILOAD_3);
+	pushInt(4*(i+1) + decoded.branchOffset);
+	op(IADD);
+	store(nextPCLocal);
+	int done = jump(GOTO);
+	patch(notTaken);
+	pushPC(i+2);
+	store(nextPCLocal);
+	patch(done);
+    }
+
+    /**
+     * Emit a call to a memory access method of the processor, with a handler
+     * that makes the state precise if it throws.
+     */
+    private void memoryAccess(int i, String name, String descriptor) {
+	int start = length;
+	op(INVOKEVIRTUAL);
+	u2(methodRef(processorClass, name, descriptor));
+	handlers.add(new int[] { start, length, 0, i, pendingLoad });
+    }
+
+    /**
+     * Complete the delayed load in progress, as <tt>finishLoad()</tt> does.
+     * Anything already on the operand stack is left alone.
+     */
+    private void finishLoad() {
+	if (pendingLoad != 0) {
+	    load(loadValueLocal);
+	    store(local[pendingLoad]);
+	    pendingLoad = 0;
+	}
+    }
+
+    /**
+     * Emit code that leaves the block after <i>count</i> instructions.
+     */
+    private void exit(int count, boolean branched) {
+	spill(pendingLoad);
+
+	op(ALOAD_2);
+	pushInt(Processor.regPC);
+	if (branched)
+	    load(nextPCLocal);
+	else
+	    pushPC(count);
+	op(IASTORE);
+
+	op(ALOAD_2);
+	pushInt(Processor.regNextPC);
+	if (branched) {
+	    load(nextPCLocal);
+	    pushInt(4);
+	    op(IADD);
+	}
+	else {
+	    pushPC(count+1);
+	}
+	op(IASTORE);
+
+	pushInt(count);
+	op(IRETURN);
+    }
+
+    /**
+     * Write the registers, and the delayed load in progress, back to the
+     * processor. Registers that have not been written yet still hold the
+     * values loaded on entry, so writing them back is harmless.
+     */
+    private void spill(int pending) {
+	for (int reg=1; reg<written.length; reg++) {
+	    if (written[reg]) {
+		op(ALOAD_2);
+		pushInt(reg);
+		load(local[reg]);
+		op(IASTORE);
+	    }
+	}
+
+	if (pending != 0) {
+	    op(ALOAD_1);
+	    pushInt(pending);
+	    load(loadValueLocal);
+	    pushInt(-1);
+	    op(INVOKEVIRTUAL);
+	    u2(methodRef(processorClass, "compiledPendingLoad", "(III)V"));
+	}
+    }
+
+    /**
+     * Set the PC registers as they are while instruction <i>i</i> runs.
+     */
+    private void setPC(int i, boolean delaySlot) {
+	op(ALOAD_2);
+	pushInt(Processor.regPC);
+	pushPC(i);
+	op(IASTORE);
+
+	op(ALOAD_2);
+	pushInt(Processor.regNextPC);
+	if (delaySlot)
+	    load(nextPCLocal);
+	else
+	    pushPC(i+1);
+	op(IASTORE);
+    }
+
+    /** Push the virtual address of instruction <i>i</i>. */
+    private void pushPC(int i) {
+	op(ILOAD_3);
+	if (i != 0) {
+	    pushInt(4*i);
+	    op(IADD);
+	}
+    }
+
+    private void pushSrc1(Processor.Decoded decoded) {
+	if (Lib.test(Processor.Mips.SRC1SH, decoded.flags))
+	    pushInt(decoded.sh);
+	else
+	    readReg(decoded.rs);
+    }
+
+    private void pushSrc2(Processor.Decoded decoded) {
+	if (Lib.test(Processor.Mips.SRC2IMM, decoded.flags))
+	    pushInt(decoded.imm);
+	else
+	    readReg(decoded.rt);
+    }
+
+    private void toLong(boolean unsigned) {
+	op(I2L);
+	if (unsigned) {
+	    op(LDC2_W);
+	    u2(longConstant(0xFFFFFFFFL));
+	    op(LAND);
+	}
+    }
+
+    private void readReg(int reg) {
+	if (reg == 0)
+	    pushInt(0);
+	else
+	    load(local[reg]);
+    }
+
+    private void writeReg(int reg) {
+	if (reg == 0)
+	    op(POP);
+	else
+	    store(local[reg]);
+    }
+
+    private void pushInt(int value) {
+	if (value >= -1 && value <= 5) {
+	    op(ICONST_0 + value);
+	}
+	else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+	    op(BIPUSH);
+	    u1(value);
+	}
+	else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+	    op(SIPUSH);
+	    u2(value);
+	}
+	else {
+	    op(LDC_W);
+	    u2(constant(3, "I" + value, value));
+	}
+    }
+
+    private void load(int local) {
+	if (local <= 3) {
+	    op(ILOAD_0 + local);
+	}
+	else {
+	    op(ILOAD);
+	    u1(local);
+	}
+    }
+
+    private void store(int local) {
+	if (local <= 3) {
+	    op(ISTORE_0 + local);
+	}
+	else {
+	    op(ISTORE);
+	    u1(local);
+	}
+    }
+
+    /** Emit a jump to be patched later, and return its location. */
+    private int jump(int opcode) {
+	int at = length;
+	op(opcode);
+	u2(0);
+	return at;
+    }
+
+    /** Point the jump at <i>at</i> to the current location. */
+    private void patch(int at) {
+	int offset = length - at;
+	code[at+1] = (byte) (offset >> 8);
+	code[at+2] = (byte) offset;
+    }
+
+    private void op(int opcode) {
+	u1(opcode);
+    }
+
+    private void u1(int value) {
+	if (length == code.length) {
+	    byte[] bigger = new byte[code.length*2];
+	    System.arraycopy(code, 0, bigger, 0, length);
+	    code = bigger;
+	}
+	code[length++] = (byte) value;
+    }
+
+    private void u2(int value) {
+	u1(value >> 8);
+	u1(value);
+    }
+
+    private int utf8(String value) {
+	Integer index = constants.get("U" + value);
+	if (index != null)
+	    return index.intValue();
+
+	try {
+	    pool.writeByte(1);
+	    pool.writeUTF(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+	return newConstant("U" + value, 1);
+    }
+
+    private int classRef(String name) {
+	Integer index = constants.get("C" + name);
+	if (index != null)
+	    return index.intValue();
+
+	return constant(7, "C" + name, utf8(name));
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+	String key = "M" + owner + "." + name + descriptor;
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	int ownerIndex = classRef(owner);
+	int nameAndType = nameAndType(name, descriptor);
+
+	return constant(10, key, (ownerIndex << 16) | nameAndType);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+	String key = "N" + name + descriptor;
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	int nameIndex = utf8(name);
+	int descriptorIndex = utf8(descriptor);
+
+	return constant(12, key, (nameIndex << 16) | descriptorIndex);
+    }
+
+    private int longConstant(long value) {
+	String key = "J" + value;
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	try {
+	    pool.writeByte(5);
+	    pool.writeLong(value);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+
+	// long constants take up two entries
+	int result = newConstant(key, 1);
+	poolCount++;
+	return result;
+    }
+
+    /**
+     * Add a constant whose contents are a single <tt>u4</tt> (an integer, or
+     * a pair of <tt>u2</tt> indices), or a single <tt>u2</tt> for a class.
+     */
+    private int constant(int tag, String key, int contents) {
+	Integer index = constants.get(key);
+	if (index != null)
+	    return index.intValue();
+
+	try {
+	    pool.writeByte(tag);
+	    if (tag == 7)
+		pool.writeShort(contents);
+	    else
+		pool.writeInt(contents);
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached();
+	}
+	return newConstant(key, 1);
+    }
+
+    private int newConstant(String key, int size) {
+	int index = poolCount;
+	poolCount += size;
+	constants.put(key, index);
+	return index;
+    }
+
+    private byte[] classFile() throws IOException {
+	String name = "nachos/machine/CompiledBlock" + (numCompiled++);
+	String superName = "nachos/machine/Processor$CompiledBlock";
+
+	int thisIndex = classRef(name);
+	int superIndex = classRef(superName);
+	int codeIndex = utf8("Code");
+	int initIndex = utf8("<init>");
+	int voidIndex = utf8("()V");
+	int superInit = methodRef(superName, "<init>", "()V");
+	int runIndex = utf8("run");
+	int runDescriptor = utf8("(L" + processorClass + ";[II)I");
+
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+	DataOutputStream out = new DataOutputStream(bytes);
+
+	out.writeInt(0xCAFEBABE);
+	out.writeShort(0);
+	out.writeShort(classVersion);
+	out.writeShort(poolCount);
+	poolBytes.writeTo(out);
+
+	out.writeShort(ACC_FINAL | ACC_SUPER);
+	out.writeShort(thisIndex);
+	out.writeShort(superIndex);
+	out.writeShort(0);	// interfaces
+	out.writeShort(0);	// fields
+	out.writeShort(2);	// methods
+
+	// <init>: aload_0; invokespecial super.<init>(); return
+	byte[] init = { ALOAD_0, (byte) INVOKESPECIAL,
+			(byte) (superInit >> 8), (byte) superInit,
+			(byte) RETURN };
+	writeMethod(out, 0, initIndex, voidIndex, codeIndex, 1, 1,
+		    init, init.length, new ArrayList<int[]>());
+
+	writeMethod(out, ACC_FINAL, runIndex, runDescriptor, codeIndex,
+		    maxStack, maxLocals, code, length, handlers);
+
+	out.writeShort(0);	// attributes
+
+	out.flush();
+	return bytes.toByteArray();
+    }
+
+    private static void writeMethod(DataOutputStream out, int access,
+				    int name, int descriptor, int codeName,
+				    int maxStack, int maxLocals,
+				    byte[] code, int length,
+				    ArrayList<int[]> handlers)
+	throws IOException {
+	out.writeShort(access);
+	out.writeShort(name);
+	out.writeShort(descriptor);
+	out.writeShort(1);
+
+	out.writeShort(codeName);
+	out.writeInt(12 + length + 8*handlers.size());
+	out.writeShort(maxStack);
+	out.writeShort(maxLocals);
+	out.writeInt(length);
+	out.write(code, 0, length);
+	out.writeShort(handlers.size());
+	for (int i=0; i<handlers.size(); i++) {
+	    int[] handler = handlers.get(i);
+	    out.writeShort(handler[0]);
+	    out.writeShort(handler[1]);
+	    out.writeShort(handler[2]);
+	    out.writeShort(0);	// catch anything
+	}
+	out.writeShort(0);
+    }
+
+    private Processor.Decoded[] block;
+    /** <tt>true</tt> if the block ends with a branch and its delay slot. */
+    private boolean branch;
+
+    /** The local holding each guest register, or 0 if it has none. */
+    private int[] local = new int[Processor.regHi+1];
+    /** The guest registers the block may write. */
+    private boolean[] written = new boolean[Processor.regHi+1];
+    /** The target of the delayed load in progress, or 0 if none. */
+    private int pendingLoad = 0;
+
+    private byte[] code = new byte[1024];
+    private int length = 0;
+    private int maxLocals;
+    /**
+     * Exception handlers, each as the start and end of the protected call,
+     * the handler location, the instruction index, and the delayed load in
+     * progress.
+     */
+    private ArrayList<int[]> handlers = new ArrayList<int[]>();
+
+    private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private DataOutputStream pool = new DataOutputStream(poolBytes);
+    private int poolCount = 1;
+    private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+    // locals 0 to 3 are this, the processor, the registers and the PC
+    private static final int loadValueLocal = 4;
+    private static final int nextPCLocal = 5;
+    private static final int exceptionLocal = 6;
+    private static final int firstRegisterLocal = 7;
+    private static final int maxStack = 8;
+
+    private static final String processorClass = "nachos/machine/Processor";
+
+    /** Old enough that the verifier does not need stack map frames. */
+    private static final int classVersion = 49;
+
+    private static int numCompiled = 0;
+
+    private static boolean supported;
+    /**
+     * <tt>Lookup.defineHiddenClass()</tt>, available since Java 15.
+     * <tt>Lookup.defineClass()</tt> is not used on older JVMs, since it
+     * needs a permission the security manager does not grant.
+     */
+    private static MethodHandle defineHiddenClass;
+    /** An empty array of hidden class options. */
+    private static Object noOptions;
+
+    static {
+	MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+	try {
+	    Class<?> option =
+		Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+	    noOptions = Array.newInstance(option, 0);
+	    defineHiddenClass =
+		lookup.findVirtual(MethodHandles.Lookup.class,
+				   "defineHiddenClass",
+				   MethodType.methodType(MethodHandles.Lookup.class,
+							 byte[].class,
+							 boolean.class,
+							 noOptions.getClass()))
+		.asFixedArity();
+	}
+	catch (Exception e) {
+	    defineHiddenClass = null;
+	}
+
+	supported = (defineHiddenClass != null);
+    }
+
+    private static final int
+	ACC_FINAL = 0x0010,
+	ACC_SUPER = 0x0020;
+
+    private static final int
+	ICONST_0 = 0x03,
+	BIPUSH = 0x10,
+	SIPUSH = 0x11,
+	LDC_W = 0x13,
+	LDC2_W = 0x14,
+	ILOAD = 0x15,
+	ALOAD = 0x19,
+	ILOAD_0 = 0x1a,
+	ILOAD_3 = 0x1d,
+	ALOAD_0 = 0x2a,
+	ALOAD_1 = 0x2b,
+	ALOAD_2 = 0x2c,
+	IALOAD = 0x2e,
+	ISTORE = 0x36,
+	ASTORE = 0x3a,
+	ISTORE_0 = 0x3b,
+	IASTORE = 0x4f,
+	POP = 0x57,
+	DUP2 = 0x5c,
+	IADD = 0x60,
+	ISUB = 0x64,
+	LSUB = 0x65,
+	LMUL = 0x69,
+	ISHL = 0x78,
+	ISHR = 0x7a,
+	LSHR = 0x7b,
+	LUSHR = 0x7d,
+	IAND = 0x7e,
+	LAND = 0x7f,
+	IOR = 0x80,
+	IXOR = 0x82,
+	I2L = 0x85,
+	L2I = 0x88,
+	IFLT = 0x9b,
+	IFGE = 0x9c,
+	IFGT = 0x9d,
+	IFLE = 0x9e,
+	IFEQ = 0x99,
+	IF_ICMPEQ = 0x9f,
+	IF_ICMPNE = 0xa0,
+	GOTO = 0xa7,
+	IRETURN = 0xac,
+	RETURN = 0xb1,
+	INVOKEVIRTUAL = 0xb6,
+	INVOKESPECIAL = 0xb7,
+	ATHROW = 0xbf;
+
+    private static final char dbgCompiler = 'j';
+}
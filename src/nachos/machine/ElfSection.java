@@ -333,6 +333,8 @@ public class ElfSection {
 			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
 
 		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+
+		Machine.processor().flushDecodeCache(ppn);
 	}
 
 	public int getFirstVPN() {
@@ -4,9 +4,8 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -53,7 +52,16 @@ public final class Interrupt {
 	privilege.interrupt = new InterruptPrivilege();
 	
 	enabled = false;
-	pending = new TreeSet<PendingInterrupt>();
+
+	times = new long[initialCapacity];
+	ids = new long[initialCapacity];
+	slots = new int[initialCapacity];
+	types = new String[initialCapacity];
+	handlers = new Runnable[initialCapacity];
+	freeSlots = new int[initialCapacity];
+	for (int i=0; i<initialCapacity; i++)
+	    freeSlots[i] = initialCapacity-1 - i;
+	numFreeSlots = initialCapacity;
     }
 
     /**
@@ -124,13 +132,96 @@ public final class Interrupt {
 	Lib.assertTrue(when>0);
 	
 	long time = privilege.stats.totalTicks + when;
-	PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-	Lib.debug(dbgInt,
-		  "Scheduling the " + type +
-		  " interrupt handler at time = " + time);
+	if (Lib.test(dbgInt))
+	    System.out.println("Scheduling the " + type +
+			       " interrupt handler at time = " + time);
+
+	if (numFreeSlots == 0)
+	    grow();
+
+	int slot = freeSlots[--numFreeSlots];
+	types[slot] = type;
+	handlers[slot] = handler;
+
+	// add to the bottom of the heap and sift up; interrupts due at the same
+	// time are ordered by when they were scheduled
+	long id = numPendingInterruptsCreated++;
+	int i = numPending++;
+	while (i > 0) {
+	    int parent = (i-1) / 2;
+	    if (!earlier(time, id, times[parent], ids[parent]))
+		break;
+
+	    move(parent, i);
+	    i = parent;
+	}
+	place(i, time, id, slot);
+    }
+
+    /**
+     * Remove the earliest pending interrupt from the heap, freeing its slot.
+     * Its handler and type must be read from the slot first.
+     */
+    private void removeFirst() {
+	int slot = slots[0];
+	types[slot] = null;
+	handlers[slot] = null;
+	freeSlots[numFreeSlots++] = slot;
+
+	// move the last entry to the top and sift it down
+	int last = --numPending;
+	if (last == 0)
+	    return;
+
+	long time = times[last], id = ids[last];
+	int lastSlot = slots[last];
+
+	int i = 0;
+	while (true) {
+	    int child = 2*i + 1;
+	    if (child >= last)
+		break;
+	    if (child+1 < last &&
+		earlier(times[child+1], ids[child+1], times[child], ids[child]))
+		child++;
+	    if (!earlier(times[child], ids[child], time, id))
+		break;
+
+	    move(child, i);
+	    i = child;
+	}
+	place(i, time, id, lastSlot);
+    }
 
-	pending.add(toOccur);
+    private static boolean earlier(long time1, long id1,
+				   long time2, long id2) {
+	return time1 < time2 || (time1 == time2 && id1 < id2);
+    }
+
+    private void move(int from, int to) {
+	place(to, times[from], ids[from], slots[from]);
+    }
+
+    private void place(int i, long time, long id, int slot) {
+	times[i] = time;
+	ids[i] = id;
+	slots[i] = slot;
+    }
+
+    private void grow() {
+	int capacity = times.length;
+
+	times = Arrays.copyOf(times, capacity*2);
+	ids = Arrays.copyOf(ids, capacity*2);
+	slots = Arrays.copyOf(slots, capacity*2);
+	types = Arrays.copyOf(types, capacity*2);
+	handlers = Arrays.copyOf(handlers, capacity*2);
+	freeSlots = Arrays.copyOf(freeSlots, capacity*2);
+
+	// every slot is in use, so the new ones are the only free ones
+	for (int i=capacity*2-1; i>=capacity; i--)
+	    freeSlots[numFreeSlots++] = i;
     }
 
     private void tick(boolean inKernelMode) {
@@ -161,83 +252,165 @@ public final class Interrupt {
 	if (Lib.test(dbgInt))
 	    print();
 
-	if (pending.isEmpty())
+	if (numPending == 0)
 	    return;
 
-	if (((PendingInterrupt) pending.first()).time > time)
+	if (times[0] > time)
 	    return;
 
 	Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 	
-	while (!pending.isEmpty() &&
-	       ((PendingInterrupt) pending.first()).time <= time) {
-	    PendingInterrupt next = (PendingInterrupt) pending.first();
-	    pending.remove(next);
-
-	    Lib.assertTrue(next.time <= time);
+	while (numPending > 0 && times[0] <= time) {
+	    int slot = slots[0];
+	    String type = types[slot];
+	    Runnable handler = handlers[slot];
+	    removeFirst();
 
 	    if (privilege.processor != null)
 		privilege.processor.flushPipe();
 
-	    Lib.debug(dbgInt, "  " + next.type);
+	    Lib.debug(dbgInt, "  " + type);
 			
-	    next.handler.run();
+	    handler.run();
 	}
 
 	Lib.debug(dbgInt, "  (end of list)");
     }
 
+    /**
+     * Return the time at which the earliest pending interrupt falls due.
+     * Until then, advancing the simulated time has no effect other than
+     * updating the statistics.
+     *
+     * @return	the due time of the next pending interrupt, or
+     *		<tt>Long.MAX_VALUE</tt> if none are pending.
+     */
+    public long nextDueTime() {
+	if (numPending == 0)
+	    return Long.MAX_VALUE;
+
+	return times[0];
+    }
+
+    /**
+     * Advance the simulated time by the specified number of user-mode ticks,
+     * with the same effect as that many calls to <tt>tick(false)</tt>. The
+     * caller must guarantee that no interrupt falls due during these ticks.
+     *
+     * @param	ticks	the number of user-mode ticks to charge.
+     */
+    void chargeUserTicks(int ticks) {
+	if (ticks == 0)
+	    return;
+
+	// keep the per-tick trace intact when it is being printed
+	if (Lib.test(dbgInt)) {
+	    for (int i=0; i<ticks; i++)
+		tick(false);
+	    return;
+	}
+
+	Stats stats = privilege.stats;
+
+	Lib.assertTrue(stats.totalTicks + (long) ticks*Stats.UserTick <
+		       nextDueTime());
+
+	stats.userTicks += (long) ticks*Stats.UserTick;
+	stats.totalTicks += (long) ticks*Stats.UserTick;
+
+	enabled = true;
+    }
+
+    /**
+     * Tell the interrupt controller that the CPU is about to go idle, because
+     * there are no threads ready to run. Interrupts must be disabled.
+     *
+     * <p>
+     * Until the next interrupt falls due, the idle thread can only call
+     * <tt>yield()</tt>, each time advancing the simulated time by one kernel
+     * tick and finding nothing to do. This method skips those ticks at once:
+     * it advances the simulated time as far as it can without reaching the
+     * next pending interrupt, so that the following tick is the one on which
+     * it falls due. The statistics are charged exactly as if the idle thread
+     * had spun.
+     */
+    public void idle() {
+	Lib.assertTrue(disabled());
+
+	// keep the per-tick trace intact when it is being printed
+	if (Lib.test(dbgInt))
+	    return;
+
+	long due = nextDueTime();
+	if (due == Long.MAX_VALUE)
+	    return;
+
+	Stats stats = privilege.stats;
+
+	long ticks = (due - stats.totalTicks - 1) / Stats.KernelTick;
+	if (ticks <= 0)
+	    return;
+
+	stats.kernelTicks += ticks*Stats.KernelTick;
+	stats.totalTicks += ticks*Stats.KernelTick;
+    }
+
     private void print() {
 	System.out.println("Time: " + privilege.stats.totalTicks
 			   + ", interrupts " + (enabled ? "on" : "off"));
 	System.out.println("Pending interrupts:");
 
-	for (Iterator i=pending.iterator(); i.hasNext(); ) {
-	    PendingInterrupt toOccur = (PendingInterrupt) i.next();
-	    System.out.println("  " + toOccur.type +
-			       ", scheduled at " + toOccur.time);
+	// the heap is only partially ordered, so sort a copy
+	Integer[] order = new Integer[numPending];
+	for (int i=0; i<numPending; i++)
+	    order[i] = i;
+
+	Arrays.sort(order, new Comparator<Integer>() {
+		public int compare(Integer a, Integer b) {
+		    if (earlier(times[a], ids[a], times[b], ids[b]))
+			return -1;
+		    else if (earlier(times[b], ids[b], times[a], ids[a]))
+			return 1;
+		    else
+			return 0;
+		}
+	    });
+
+	for (int i=0; i<numPending; i++) {
+	    int j = order[i];
+	    System.out.println("  " + types[slots[j]] +
+			       ", scheduled at " + times[j]);
 	}
 
 	System.out.println("  (end of list)");
     }
 
-    private class PendingInterrupt implements Comparable {
-	PendingInterrupt(long time, String type, Runnable handler) {
-	    this.time = time;
-	    this.type = type;
-	    this.handler = handler;
-	    this.id = numPendingInterruptsCreated++;
-	}
-
-	public int compareTo(Object o) {
-	    PendingInterrupt toOccur = (PendingInterrupt) o;
-
-	    // can't return 0 for unequal objects, so check all fields
-	    if (time < toOccur.time)
-		return -1;
-	    else if (time > toOccur.time)
-		return 1;
-	    else if (id < toOccur.id)
-		return -1;
-	    else if (id > toOccur.id)
-		return 1;
-	    else
-		return 0;
-	}
-
-	long time;
-	String type;
-	Runnable handler;
-
-	private long id;
-    }
-    
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
-    private TreeSet<PendingInterrupt> pending;
+
+    /**
+     * The pending interrupts, as a binary min-heap ordered by due time and
+     * then by the order in which they were scheduled. Entry <i>i</i> of the
+     * heap is due at <tt>times[i]</tt>, was the <tt>ids[i]</tt>th interrupt
+     * scheduled, and keeps its type and handler in slot <tt>slots[i]</tt>.
+     */
+    private long[] times, ids;
+    private int[] slots;
+    private int numPending = 0;
+
+    /**
+     * The type and handler of each pending interrupt, indexed by slot. Slots
+     * are recycled through a stack of free slots.
+     */
+    private String[] types;
+    private Runnable[] handlers;
+    private int[] freeSlots;
+    private int numFreeSlots;
+
+    private static final int initialCapacity = 16;
 
     private static final char dbgInt = 'i';
 
@@ -0,0 +1,121 @@
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.security.PrivilegedAction;
+import java.security.PrivilegedExceptionAction;
+import java.util.Random;
+
+/**
+ * A microbenchmark for the interrupt controller's event queue. It runs
+ * outside of Nachos, with a private interrupt controller and statistics.
+ *
+ * <p>
+ * A number of event sources each keep one interrupt pending, rescheduling
+ * it from its handler after a random delay, much as the timer and the
+ * console and network devices do. Simulated time jumps straight to each
+ * interrupt, as it does when the processor runs user code, so the benchmark
+ * measures the cost of scheduling and dispatching interrupts and little
+ * else. Every handler checks that it was called at the time it was due.
+ *
+ * <p>
+ * The benchmark is not part of the machine simulation, and is only built by
+ * <tt>make benchmark</tt>. It is in this package because it drives the
+ * interrupt controller directly.
+ *
+ * <p>
+ * Usage: <tt>java nachos.machine.InterruptBenchmark [<i>sources</i>
+ * [<i>events</i>]]</tt>.
+ */
+public final class InterruptBenchmark {
+    private InterruptBenchmark(int numSources) {
+	privilege = new BenchmarkPrivilege();
+	privilege.stats = new Stats();
+	interrupt = new Interrupt(privilege);
+	System.out.println();
+
+	for (int i=0; i<numSources; i++)
+	    new Source().schedule();
+    }
+
+    private void run(long numEvents) {
+	while (numFired < numEvents) {
+	    long ticks = interrupt.nextDueTime() - privilege.stats.totalTicks;
+	    interrupt.chargeUserTicks((int) (ticks-1));
+	    privilege.interrupt.tick(false);
+	}
+    }
+
+    /**
+     * Run the benchmark.
+     *
+     * @param	args	the number of event sources and the number of events
+     *			to dispatch.
+     */
+    public static void main(String[] args) {
+	int numSources = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+	long numEvents = (args.length > 1) ? Long.parseLong(args[1]) : 10000000;
+
+	InterruptBenchmark benchmark = new InterruptBenchmark(numSources);
+
+	// warm up the JIT compiler first
+	benchmark.run(numEvents / 10);
+
+	long start = System.nanoTime();
+	long fired = benchmark.numFired;
+	benchmark.run(fired + numEvents);
+	long elapsed = System.nanoTime() - start;
+
+	fired = benchmark.numFired - fired;
+	System.out.println(fired + " events from " + numSources +
+			   " sources in " + (elapsed / 1000000) + " ms: " +
+			   (long) (fired * 1e9 / elapsed) + " events/second");
+    }
+
+    private class Source implements Runnable {
+	void schedule() {
+	    // small delays, so that interrupts often fall due at the same time
+	    long delay = 1 + random.nextInt(maxDelay);
+	    due = privilege.stats.totalTicks + delay;
+	    privilege.interrupt.schedule(delay, "benchmark", this);
+	}
+
+	public void run() {
+	    Lib.assertTrue(privilege.stats.totalTicks == due);
+
+	    numFired++;
+	    schedule();
+	}
+
+	private long due;
+    }
+
+    private static class BenchmarkPrivilege extends Privilege {
+	public void doPrivileged(Runnable action) {
+	    action.run();
+	}
+
+	// Privilege declares these with raw types, so they must be raw here
+	@SuppressWarnings("rawtypes")
+	public Object doPrivileged(PrivilegedAction action) {
+	    return action.run();
+	}
+
+	@SuppressWarnings("rawtypes")
+	public Object doPrivileged(PrivilegedExceptionAction action) {
+	    Lib.assertNotReached();
+	    return null;
+	}
+
+	public void exit(int exitStatus) {
+	    System.exit(exitStatus);
+	}
+    }
+
+    private Privilege privilege;
+    private Interrupt interrupt;
+    private Random random = new Random(0);
+    private long numFired = 0;
+
+    private static final int maxDelay = 100;
+}
@@ -42,15 +42,32 @@ public final class Processor {
 	
 	this.numPhysPages = numPhysPages;
 
+	// the debug flags are set before the machine is created
+	debugProcessor = Lib.test(dbgProcessor);
+	debugDisassemble = Lib.test(dbgDisassemble);
+	debugFullDisassemble = Lib.test(dbgFullDisassemble);
+
 	for (int i=0; i<numUserRegisters; i++)
 	    registers[i] = 0;
 
 	mainMemory = new byte[pageSize * numPhysPages];
+	decodeCache = new Decoded[numPhysPages][];
+
+	threadedCode = Config.getBoolean("Processor.threadedCode", false);
+	compileThreshold = Config.getInteger("Processor.compileThreshold", 0);
+	if (compileThreshold > 0 && !BlockCompiler.isSupported()) {
+	    System.err.println("\nWarning: compiling blocks needs Java 15 " +
+			       "or later, so blocks will not be compiled");
+	    compileThreshold = 0;
+	}
+	blockCache = new Block[numPhysPages][];
+	blockWords = new long[numPhysPages][];
 
 	if (usingTLB) {
 	    translations = new TranslationEntry[tlbSize];
 	    for (int i=0; i<tlbSize; i++)
 		translations[i] = new TranslationEntry();
+	    tlbIndex = new int[maxPages / tlbIndexSpan][];
 	}
 	else {
 	    translations = null;
@@ -91,6 +108,15 @@ public final class Processor {
 
 	Machine.autoGrader().runProcessor(privilege);
 
+	// the per-instruction trace needs a tick after every instruction, so
+	// that the interrupt trace is interleaved with it as before
+	if (!debugProcessor && !debugDisassemble && !debugFullDisassemble) {
+	    if (threadedCode)
+		runBlocks();
+	    else
+		runBursts();
+	}
+
 	Instruction inst = new Instruction();
 	
 	while (true) {
@@ -215,7 +241,47 @@ public final class Processor {
 	Lib.assertTrue(usingTLB);
 	Lib.assertTrue(number >= 0 && number < tlbSize);
 
+	TranslationEntry old = translations[number];
 	translations[number] = new TranslationEntry(entry);
+
+	if (old.valid)
+	    updateTLBIndex(old.vpn);
+	if (entry.valid)
+	    updateTLBIndex(entry.vpn);
+
+	fetchVPN = -1;
+	dataVPN = -1;
+    }
+
+    /**
+     * Recompute the TLB index entry for <i>vpn</i>, after an entry mapping it
+     * was added or replaced. If several valid entries map the same page, the
+     * one with the lowest index wins, as it did when the TLB was searched in
+     * order.
+     *
+     * @param	vpn	the virtual page number.
+     */
+    private void updateTLBIndex(int vpn) {
+	// no translation can ask for a page outside the address space
+	if (vpn < 0 || vpn >= maxPages)
+	    return;
+
+	int first = 0;
+	for (int i=tlbSize-1; i>=0; i--) {
+	    if (translations[i].valid && translations[i].vpn == vpn)
+		first = i+1;
+	}
+
+	int[] span = tlbIndex[vpn / tlbIndexSpan];
+	if (span == null) {
+	    if (first == 0)
+		return;
+
+	    span = new int[tlbIndexSpan];
+	    tlbIndex[vpn / tlbIndexSpan] = span;
+	}
+
+	span[vpn % tlbIndexSpan] = first;
     }
 
     /**
@@ -228,6 +294,40 @@ public final class Processor {
 	return numPhysPages;
     }
 
+    /**
+     * Record the name of the kernel's page replacement policy, so that its
+     * paging activity is printed with the other statistics.
+     *
+     * @param	name	the name of the policy.
+     */
+    public void setPagingPolicy(String name) {
+	privilege.stats.pagingPolicy = name;
+    }
+
+    /**
+     * Record that the kernel brought a page into physical memory to service a
+     * fault.
+     *
+     * @param	fromSwap	<tt>true</tt> if the page was read from swap,
+     *				rather than created or loaded afresh.
+     */
+    public void recordPageIn(boolean fromSwap) {
+	privilege.stats.numPageIns++;
+	if (fromSwap)
+	    privilege.stats.numSwapReads++;
+    }
+
+    /**
+     * Record that the kernel evicted a page from physical memory.
+     *
+     * @param	written	<tt>true</tt> if the page had to be written to swap.
+     */
+    public void recordPageOut(boolean written) {
+	privilege.stats.numPageOuts++;
+	if (written)
+	    privilege.stats.numSwapWrites++;
+    }
+
     /**
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
@@ -238,6 +338,26 @@ public final class Processor {
 	return mainMemory;
     }
 
+    /**
+     * Discard any cached instruction decodings for the specified page of
+     * physical memory.
+     *
+     * <p>
+     * The processor remembers the decoded form of every instruction it
+     * fetches, keyed by physical address. Stores made by user programs keep
+     * this cache up to date, but a kernel that modifies physical memory
+     * directly (through the array returned by <tt>getMemory()</tt>) must call
+     * this method for every page it modifies before user code runs from it.
+     *
+     * @param	ppn	the physical page that was modified.
+     */
+    public void flushDecodeCache(int ppn) {
+	Lib.assertTrue(ppn >= 0 && ppn < numPhysPages);
+
+	decodeCache[ppn] = null;
+	invalidateBlocks(ppn);
+    }
+
     /**
      * Concatenate a page number and an offset into an address.
      *
@@ -294,7 +414,68 @@ public final class Processor {
      */
     private int translate(int vaddr, int size, boolean writing)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	int vpn = pageFromAddress(vaddr);
+
+	// the data micro-TLB holds the last TLB entry used for a load or store;
+	// its used bit is already set, and it is known to map a good page
+	if (vpn == dataVPN && (vaddr & (size-1)) == 0 &&
+	    !(writing && dataEntry.readOnly)) {
+	    if (writing)
+		dataEntry.dirty = true;
+
+	    return dataBase + offsetFromAddress(vaddr);
+	}
+
+	TranslationEntry entry = lookup(vaddr, size, writing);
+
+	if (usingTLB && !debugProcessor) {
+	    dataEntry = entry;
+	    dataBase = entry.ppn*pageSize;
+	    dataVPN = vpn;
+	}
+
+	return entry.ppn*pageSize + offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Translate the virtual address of an instruction to fetch. This is the
+     * same as <tt>translate(vaddr, 4, false)</tt>, but keeps its own
+     * micro-TLB, so that instruction fetches and data accesses do not evict
+     * each other.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return	the physical address.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private int translateFetch(int vaddr) throws MipsException {
+	int vpn = pageFromAddress(vaddr);
+
+	if (vpn == fetchVPN && (vaddr & 3) == 0)
+	    return fetchBase + offsetFromAddress(vaddr);
+
+	TranslationEntry entry = lookup(vaddr, 4, false);
+
+	if (usingTLB && !debugProcessor) {
+	    fetchBase = entry.ppn*pageSize;
+	    fetchVPN = vpn;
+	}
+
+	return entry.ppn*pageSize + offsetFromAddress(vaddr);
+    }
+
+    /**
+     * Find the translation entry for a virtual address, checking for every
+     * translation error and setting the entry's used and dirty bits.
+     *
+     * @param	vaddr	the virtual address to translate.
+     * @param	size	the size of the memory reference (must be 1, 2, or 4).
+     * @param	writing	<tt>true</tt> if the memory reference is a write.
+     * @return	the translation entry.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private TranslationEntry lookup(int vaddr, int size, boolean writing)
+	throws MipsException {
+	if (debugProcessor)
 	    System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 			       + (writing ? ", write" : ", read..."));
 
@@ -322,14 +503,13 @@ public final class Processor {
 
 	    entry = translations[vpn];
 	}
-	// else, look through all TLB entries for matching vpn
+	// else, find the first TLB entry for the vpn in the TLB index
 	else {
-	    for (int i=0; i<tlbSize; i++) {
-		if (translations[i].valid && translations[i].vpn == vpn) {
-		    entry = translations[i];
-		    break;
-		}
-	    }
+	    int[] span = tlbIndex[vpn / tlbIndexSpan];
+	    int index = (span == null) ? 0 : span[vpn % tlbIndexSpan];
+	    if (index != 0)
+		entry = translations[index-1];
+
 	    if (entry == null) {
 		privilege.stats.numTLBMisses++;
 		Lib.debug(dbgProcessor, "\t\tTLB miss");
@@ -355,11 +535,11 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
-	int paddr = (ppn*pageSize) + offset;
-
-	if (Lib.test(dbgProcessor))
-	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));	
-	return paddr;
+	if (debugProcessor) {
+	    int paddr = (ppn*pageSize) + offset;
+	    System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+	}
+	return entry;
     }
 
     /**
@@ -372,7 +552,7 @@ public final class Processor {
      * @exception	MipsException	if a translation error occurred.
      */
     private int readMem(int vaddr, int size) throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size);
 
@@ -381,7 +561,7 @@ public final class Processor {
 	int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
 				   size);
 
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\t\tvalue read=0x" +
 			       Lib.toHexString(value, size*2));
 	
@@ -399,15 +579,73 @@ public final class Processor {
      */
     private void writeMem(int vaddr, int size, int value)
 	throws MipsException {
-	if (Lib.test(dbgProcessor))
+	if (debugProcessor)
 	    System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
 			       + ", size=" + size + ", value=0x"
 			       + Lib.toHexString(value, size*2));
 
 	Lib.assertTrue(size==1 || size==2 || size==4);
+
+	int paddr = translate(vaddr, size, true);
+	
+	Lib.bytesFromInt(mainMemory, paddr, size, value);
+
+	// accesses are aligned, so at most one cached instruction is affected
+	int ppn = paddr / pageSize;
+	int word = (paddr % pageSize) / 4;
 	
-	Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size,
-			 value);
+	Decoded[] decoded = decodeCache[ppn];
+	if (decoded != null)
+	    decoded[word] = null;
+
+	long[] words = blockWords[ppn];
+	if (words != null && (words[word/64] & (1L << word)) != 0)
+	    invalidateBlocks(ppn);
+    }
+
+    /**
+     * Fetch the instruction at <i>vaddr</i>, decoding it only if it is not
+     * already in the decode cache.
+     *
+     * @param	vaddr	the virtual address of the instruction.
+     * @return		the decoded instruction.
+     * @exception	MipsException	if a translation error occurred.
+     */
+    private Decoded fetchDecoded(int vaddr) throws MipsException {
+	if (debugProcessor)
+	    System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+			       + ", size=4");
+
+	Decoded decoded = decodedAt(translateFetch(vaddr));
+
+	if (debugProcessor)
+	    System.out.println("\t\tvalue read=0x" +
+			       Lib.toHexString(decoded.value, 8));
+
+	return decoded;
+    }
+
+    /**
+     * Return the decoded form of the instruction at physical address
+     * <i>paddr</i>, decoding it if it is not already in the decode cache.
+     *
+     * @param	paddr	the word-aligned physical address of the instruction.
+     * @return		the decoded instruction.
+     */
+    private Decoded decodedAt(int paddr) {
+	Decoded[] page = decodeCache[paddr / pageSize];
+	if (page == null) {
+	    page = new Decoded[pageSize / 4];
+	    decodeCache[paddr / pageSize] = page;
+	}
+
+	Decoded decoded = page[(paddr % pageSize) / 4];
+	if (decoded == null) {
+	    decoded = new Decoded(Lib.bytesToInt(mainMemory, paddr, 4));
+	    page[(paddr % pageSize) / 4] = decoded;
+	}
+
+	return decoded;
     }
 
     /**
@@ -463,6 +701,225 @@ public final class Processor {
 	registers[regNextPC] = nextPC;
     }
 
+    /**
+     * Execute user instructions one at a time, in bursts that end when the
+     * next interrupt falls due. Never returns.
+     *
+     * <p>
+     * No interrupt can fall due in the middle of a burst, so the ticks for
+     * all but the last instruction of a burst are charged at once, and a
+     * real <tt>tick()</tt> call is made only for the instruction on which an
+     * interrupt falls due or an exception occurs. Interrupts are only ever
+     * scheduled by the kernel, so the result is identical to ticking after
+     * every instruction.
+     */
+    private void runBursts() {
+	Interrupt interrupt = Machine.interrupt();
+	Instruction inst = new Instruction();
+
+	while (true) {
+	    int budget = instructionsUntilDue(interrupt);
+	    int executed = 0;
+
+	    try {
+		while (executed < budget) {
+		    inst.run();
+		    executed++;
+		}
+
+		interrupt.chargeUserTicks(executed-1);
+		privilege.interrupt.tick(false);
+	    }
+	    catch (MipsException e) {
+		interrupt.chargeUserTicks(executed);
+		e.handle();
+		privilege.interrupt.tick(false);
+	    }
+	}
+    }
+
+    /**
+     * Execute user instructions using the block engine. Never returns.
+     *
+     * <p>
+     * Straight-line runs of instructions are bound once to handler objects
+     * (see <tt>Block</tt>) and then executed back to back, each block
+     * remembering the blocks that followed it. Instead of ticking after
+     * every instruction, the engine runs until the next interrupt falls due,
+     * charges the skipped ticks all at once, and makes a real <tt>tick()</tt>
+     * call only for the instruction on which an interrupt falls due or an
+     * exception occurs. The result is identical to the interpreter loop in
+     * <tt>run()</tt>, tick for tick.
+     */
+    private void runBlocks() {
+	Interrupt interrupt = Machine.interrupt();
+	Instruction inst = new Instruction();
+	Block block = null;
+
+	while (true) {
+	    int budget = instructionsUntilDue(interrupt);
+	    int executed = 0;
+
+	    try {
+		while (executed < budget) {
+		    int pc = registers[regPC];
+
+		    // blocks assume sequential execution, so a branch that is
+		    // still in progress (after an exception in its delay slot,
+		    // for example) is finished by the interpreter
+		    if (registers[regNextPC] != pc+4) {
+			inst.run();
+			executed++;
+			continue;
+		    }
+
+		    // this is the fetch of the block's first instruction; the
+		    // rest of the block is in the same page, so it translates
+		    // the same way
+		    int paddr = translateFetch(pc);
+
+		    Block next = null;
+		    if (block != null)
+			next = block.successor(paddr);
+		    if (next == null) {
+			next = findBlock(paddr);
+			if (block != null)
+			    block.chain(next);
+		    }
+		    block = next;
+
+		    Handler[] handlers = block.handlers;
+		    int count = Math.min(handlers.length, budget - executed);
+
+		    // compiled blocks run to the end, and expect no load to be
+		    // in progress when they start
+		    if (block.compiled != null && count == handlers.length &&
+			loadTarget == 0) {
+			try {
+			    executed += block.compiled.run(this, registers, pc);
+			}
+			catch (MipsException e) {
+			    executed += (registers[regPC] - pc) / 4;
+			    throw e;
+			}
+			continue;
+		    }
+
+		    if (++block.runs == compileThreshold)
+			block.compiled = BlockCompiler.compile(block.decoded);
+
+		    // a store into the block stops it after that instruction
+		    for (int i=0; i<count && block.valid; i++) {
+			handlers[i].run();
+			executed++;
+		    }
+		}
+
+		interrupt.chargeUserTicks(executed-1);
+		privilege.interrupt.tick(false);
+	    }
+	    catch (MipsException e) {
+		interrupt.chargeUserTicks(executed);
+		e.handle();
+		privilege.interrupt.tick(false);
+	    }
+	}
+    }
+
+    /**
+     * Return the number of user instructions that can be executed before an
+     * interrupt falls due, counting the instruction on which it falls due.
+     *
+     * @param	interrupt	the interrupt controller.
+     * @return	the number of instructions, at least 1.
+     */
+    private int instructionsUntilDue(Interrupt interrupt) {
+	long ticks = interrupt.nextDueTime() - privilege.stats.totalTicks;
+
+	if (ticks <= Stats.UserTick)
+	    return 1;
+
+	return (int) Math.min((ticks-1) / Stats.UserTick + 1, maxBurst);
+    }
+
+    /**
+     * Return the block starting at physical address <i>paddr</i>, building
+     * it if necessary.
+     *
+     * @param	paddr	the physical address of the first instruction.
+     * @return	the block.
+     */
+    private Block findBlock(int paddr) {
+	int ppn = paddr / pageSize;
+	int word = (paddr % pageSize) / 4;
+
+	Block[] page = blockCache[ppn];
+	if (page == null) {
+	    page = new Block[pageSize / 4];
+	    blockCache[ppn] = page;
+	    blockWords[ppn] = new long[pageSize / 4 / 64];
+	}
+
+	Block block = page[word];
+	if (block == null) {
+	    block = new Block(paddr);
+	    page[word] = block;
+	}
+
+	return block;
+    }
+
+    /**
+     * Discard all blocks containing instructions in the specified physical
+     * page.
+     *
+     * @param	ppn	the physical page.
+     */
+    private void invalidateBlocks(int ppn) {
+	Block[] page = blockCache[ppn];
+	if (page == null)
+	    return;
+
+	for (int i=0; i<page.length; i++) {
+	    if (page[i] != null)
+		page[i].valid = false;
+	}
+
+	blockCache[ppn] = null;
+	blockWords[ppn] = null;
+	codeWritten = true;
+    }
+
+    /**
+     * Read memory on behalf of a compiled block.
+     */
+    int compiledRead(int vaddr, int size) throws MipsException {
+	return readMem(vaddr, size);
+    }
+
+    /**
+     * Write memory on behalf of a compiled block.
+     *
+     * @return	<tt>true</tt> if the write invalidated any blocks, in which
+     *		case the compiled block must stop after this instruction.
+     */
+    boolean compiledWrite(int vaddr, int size, int value)
+	throws MipsException {
+	codeWritten = false;
+	writeMem(vaddr, size, value);
+	return codeWritten;
+    }
+
+    /**
+     * Start a delayed load on behalf of a compiled block that is exiting
+     * while the load is still in progress.
+     */
+    void compiledPendingLoad(int target, int value, int mask) {
+	loadTarget = target;
+	loadValue = value;
+	loadMask = mask;
+    }
+
     /** Caused by a syscall instruction. */
     public static final int exceptionSyscall = 0;
     /** Caused by an access to an invalid virtual page. */
@@ -546,6 +1003,24 @@ public final class Processor {
      * depending on whether there is a TLB.
      */
     private TranslationEntry[] translations;
+    /**
+     * For each virtual page mapped by a valid TLB entry, one more than the
+     * index of the first such entry, or 0 if no valid entry maps it. The
+     * index is split into lazily allocated spans of <tt>tlbIndexSpan</tt>
+     * pages.
+     */
+    private int[][] tlbIndex;
+    private static final int tlbIndexSpan = 0x400;
+    /**
+     * The micro-TLBs, holding the virtual page, entry and physical page base
+     * of the last TLB hit for an instruction fetch and for a data access.
+     * They are only used with a TLB, whose entries nothing but
+     * <tt>writeTLBEntry()</tt> can change, and a virtual page of -1 means
+     * they are empty.
+     */
+    private int fetchVPN = -1, fetchBase;
+    private TranslationEntry dataEntry;
+    private int dataVPN = -1, dataBase;
 
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
@@ -555,10 +1030,43 @@ public final class Processor {
     private int numPhysPages;
     /** Main memory for user programs. */
     private byte[] mainMemory;
+    /**
+     * Decoded instructions, indexed by physical page and then by word within
+     * the page. Pages that have not been executed from are <tt>null</tt>.
+     */
+    private Decoded[][] decodeCache;
+
+    /** <tt>true</tt> if user code should be run by the block engine. */
+    private boolean threadedCode;
+    /**
+     * Basic blocks, indexed by physical page and then by the word within the
+     * page at which they start.
+     */
+    private Block[][] blockCache;
+    /**
+     * For each physical page, a bitmap of the words that belong to some
+     * block. A store to one of these words invalidates the page's blocks.
+     */
+    private long[][] blockWords;
+    /**
+     * The most instructions the block engine runs between calls to
+     * <tt>tick()</tt> when no interrupts are pending.
+     */
+    private static final int maxBurst = 0x100000;
+    /**
+     * The number of times a block must run before it is compiled to JVM
+     * bytecode, or 0 to never compile blocks.
+     */
+    private int compileThreshold;
+    /** Set whenever blocks are invalidated, for <tt>compiledWrite()</tt>. */
+    private boolean codeWritten;
 
     /** The kernel exception handler, called on every user exception. */
     private Runnable exceptionHandler = null;
 
+    /** The debug flags below, which are tested on every instruction. */
+    private boolean debugProcessor, debugDisassemble, debugFullDisassemble;
+
     private static final char dbgProcessor = 'p';
     private static final char dbgDisassemble = 'm';
     private static final char dbgFullDisassemble = 'M';
@@ -589,7 +1097,7 @@ public final class Processor {
 	    if (hasBadVAddr)
 		writeRegister(regBadVAddr, badVAddr);
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (debugDisassemble || debugFullDisassemble)
 		System.out.println("exception: " + exceptionNames[cause]);
 
 	    finishLoad();
@@ -616,88 +1124,68 @@ public final class Processor {
 	    writeBack();
 	}	
 
+	/**
+	 * Execute an instruction that has already been fetched from the
+	 * current PC.
+	 */
+	public void run(Decoded decoded) throws MipsException {
+	    load(decoded);
+	    decode();
+	    execute();
+	    writeBack();
+	}
+
 	private boolean test(int flag) {
 	    return Lib.test(flag, flags);
 	}
 
 	private void fetch() throws MipsException {
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((debugDisassemble && !debugProcessor) ||
+		debugFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 
-	    value = readMem(registers[regPC], 4);
+	    load(fetchDecoded(registers[regPC]));
+	}
+
+	private void load(Decoded decoded) {
+	    value = decoded.value;
+	    op = decoded.op;
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    rd = decoded.rd;
+	    sh = decoded.sh;
+	    func = decoded.func;
+	    target = decoded.target;
+	    imm = decoded.imm;
+	    branchOffset = decoded.branchOffset;
+	    operation = decoded.operation;
+	    name = decoded.name;
+	    format = decoded.format;
+	    flags = decoded.flags;
+	    size = decoded.size;
+	    dstReg = decoded.dstReg;
 	}
 	
 	private void decode() {
-	    op = Lib.extract(value, 26, 6);
-	    rs = Lib.extract(value, 21, 5);
-	    rt = Lib.extract(value, 16, 5);
-	    rd = Lib.extract(value, 11, 5);
-	    sh = Lib.extract(value, 6, 5);
-	    func = Lib.extract(value, 0, 6);
-	    target = Lib.extract(value, 0, 26);
-	    imm = Lib.extend(value, 0, 16);
-
-	    Mips info;
-	    switch (op) {
-	    case 0:
-		info = Mips.specialtable[func];
-		break;
-	    case 1:
-		info = Mips.regimmtable[rt];
-		break;
-	    default:
-		info = Mips.optable[op];
-		break;
-	    }
-
-	    operation = info.operation;
-	    name = info.name;
-	    format = info.format;
-	    flags = info.flags;
-
+	    // everything that does not depend on register contents was
+	    // computed once, when the instruction entered the decode cache
 	    mask = 0xFFFFFFFF;	
 	    branch = true;
-	
-	    // get memory access size
-	    if (test(Mips.SIZEB))
-		size = 1;
-	    else if (test(Mips.SIZEH))
-		size = 2;
-	    else if (test(Mips.SIZEW))
-		size = 4;
-	    else
-		size = 0;
 
 	    // get nextPC
 	    nextPC = registers[regNextPC]+4;
 
-	    // get dstReg
-	    if (test(Mips.DSTRA))
-		dstReg = regRA;
-	    else if (format == Mips.IFMT)
-		dstReg = rt;
-	    else if (format == Mips.RFMT)
-		dstReg = rd;
-	    else
-		dstReg = -1;
-
 	    // get jtarget
 	    if (format == Mips.RFMT)
 		jtarget = registers[rs];
 	    else if (format == Mips.IFMT)
-		jtarget = registers[regNextPC] + (imm<<2);
+		jtarget = registers[regNextPC] + branchOffset;
 	    else if (format == Mips.JFMT)
 		jtarget = (registers[regNextPC]&0xF0000000) | (target<<2);
 	    else
 		jtarget = -1;
 
-	    // get imm
-	    if (test(Mips.UNSIGNED)) {
-		imm &= 0xFFFF;
-	    }
-
 	    // get addr
 	    addr = registers[rs] + imm;
 
@@ -718,13 +1206,13 @@ public final class Processor {
 		src2 &= 0xFFFFFFFFL;
 	    }	    
 
-	    if (Lib.test(dbgDisassemble) || Lib.test(dbgFullDisassemble))
+	    if (debugDisassemble || debugFullDisassemble)
 		print();	    
 	}
 
 	private void print() {
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (debugDisassemble && debugProcessor &&
+		!debugFullDisassemble)
 		System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 				 + "\t");
 	    
@@ -756,7 +1244,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 		    
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (debugFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -768,7 +1256,7 @@ public final class Processor {
 		    minCharsPrinted += 2;
 		    maxCharsPrinted += 3;
 
-		    if (Lib.test(dbgFullDisassemble) &&
+		    if (debugFullDisassemble &&
 			(i!=0 || !test(Mips.DST)) &&
 			!test(Mips.DELAYEDLOAD)) {
 			System.out.print("#0x" +
@@ -800,7 +1288,7 @@ public final class Processor {
 		    minCharsPrinted += 4;
 		    maxCharsPrinted += 5;
 
-		    if (Lib.test(dbgFullDisassemble)) {
+		    if (debugFullDisassemble) {
 			System.out.print("#0x" +
 					 Lib.toHexString(registers[rs]));
 			minCharsPrinted += 11;
@@ -840,8 +1328,8 @@ public final class Processor {
 		}
 	    }
 
-	    if (Lib.test(dbgDisassemble) && Lib.test(dbgProcessor) &&
-		!Lib.test(dbgFullDisassemble))
+	    if (debugDisassemble && debugProcessor &&
+		!debugFullDisassemble)
 		System.out.print("\n");
 	}
 
@@ -1033,7 +1521,7 @@ public final class Processor {
 		registers[dstReg] = (int) dst;
 
 	    if ((test(Mips.DST) || test(Mips.DELAYEDLOAD)) && dstReg != 0) {
-		if (Lib.test(dbgFullDisassemble)) {
+		if (debugFullDisassemble) {
 		    System.out.print("#0x" + Lib.toHexString((int) dst));
 		    if (test(Mips.DELAYEDLOAD))
 			System.out.print(" (delayed load)");
@@ -1046,13 +1534,13 @@ public final class Processor {
 
 	    advancePC(nextPC);
 
-	    if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor)) ||
-		Lib.test(dbgFullDisassemble))
+	    if ((debugDisassemble && !debugProcessor) ||
+		debugFullDisassemble)
 		System.out.print("\n");
 	}
     
 	// state used to execute a single instruction
-	int value, op, rs, rt, rd, sh, func, target, imm;
+	int value, op, rs, rt, rd, sh, func, target, imm, branchOffset;
 	int operation, format, flags;
 	String name;
 
@@ -1063,7 +1551,467 @@ public final class Processor {
 	boolean branch;
     }
 
-    private static class Mips {
+    /**
+     * A basic block: a run of instructions within one physical page, ending
+     * with a branch and its delay slot, an instruction that always causes an
+     * exception, or the end of the page.
+     */
+    private class Block {
+	Block(int paddr) {
+	    this.paddr = paddr;
+
+	    int ppn = paddr / pageSize;
+	    int first = (paddr % pageSize) / 4;
+	    int last = first;
+
+	    while (last+1 < pageSize/4) {
+		Decoded decoded = decodedAt(ppn*pageSize + last*4);
+
+		if (Lib.test(Mips.BRANCH, decoded.flags)) {
+		    // include the delay slot
+		    last++;
+		    break;
+		}
+		if (decoded.operation == Mips.SYSCALL ||
+		    decoded.operation == Mips.UNIMPL ||
+		    decoded.operation == Mips.INVALID)
+		    break;
+
+		last++;
+	    }
+
+	    decoded = new Decoded[last-first+1];
+	    handlers = new Handler[last-first+1];
+	    for (int i=first; i<=last; i++) {
+		decoded[i-first] = decodedAt(ppn*pageSize + i*4);
+		handlers[i-first] = bind(decoded[i-first]);
+		blockWords[ppn][i/64] |= 1L << i;
+	    }
+	}
+
+	/**
+	 * Return the block starting at <i>paddr</i> if it was recently run
+	 * after this one and is still valid.
+	 */
+	Block successor(int paddr) {
+	    if (next1 != null && next1.paddr == paddr && next1.valid)
+		return next1;
+	    if (next2 != null && next2.paddr == paddr && next2.valid)
+		return next2;
+
+	    return null;
+	}
+
+	/**
+	 * Remember that <i>block</i> was run after this one.
+	 */
+	void chain(Block block) {
+	    next2 = next1;
+	    next1 = block;
+	}
+
+	final int paddr;
+	final Decoded[] decoded;
+	final Handler[] handlers;
+	boolean valid = true;
+	Block next1, next2;
+	/** The number of times the block has been run by its handlers. */
+	int runs = 0;
+	CompiledBlock compiled = null;
+    }
+
+    /**
+     * A block translated to JVM bytecode by <tt>BlockCompiler</tt>.
+     */
+    abstract static class CompiledBlock {
+	/**
+	 * Run every instruction in the block, or stop early after a store that
+	 * invalidates blocks. On return, or if an exception is thrown, the
+	 * registers are exactly as the interpreter would have left them.
+	 *
+	 * @param	processor	the processor.
+	 * @param	registers	the processor's registers.
+	 * @param	pc		the virtual address of the block.
+	 * @return	the number of instructions executed.
+	 */
+	abstract int run(Processor processor, int[] registers, int pc)
+	    throws MipsException;
+    }
+
+    /**
+     * Bind a decoded instruction to a handler for the block engine. Common
+     * instructions get a specialized handler; everything else is run by the
+     * interpreter.
+     */
+    private Handler bind(Decoded decoded) {
+	switch (decoded.operation) {
+	case Mips.ADD:
+	case Mips.SUB:
+	case Mips.SLL:
+	case Mips.SRA:
+	case Mips.SRL:
+	case Mips.SLT:
+	case Mips.AND:
+	case Mips.OR:
+	case Mips.NOR:
+	case Mips.XOR:
+	case Mips.LUI:
+	    if (!Lib.test(Mips.OVERFLOW, decoded.flags))
+		return new Arithmetic(decoded);
+	    break;
+	case Mips.LOAD:
+	    return new Load(decoded);
+	case Mips.STORE:
+	    return new Store(decoded);
+	case Mips.BEQ:
+	case Mips.BNE:
+	case Mips.BLEZ:
+	case Mips.BGTZ:
+	case Mips.BLTZ:
+	case Mips.BGEZ:
+	    if (!Lib.test(Mips.LINK, decoded.flags))
+		return new Branch(decoded);
+	    break;
+	case Mips.JUMP:
+	    return new Jump(decoded);
+	case Mips.MFLO:
+	case Mips.MFHI:
+	    return new MoveFrom(decoded);
+	case Mips.MULT:
+	    return new Multiply(decoded);
+	}
+
+	return new Generic(decoded);
+    }
+
+    /**
+     * An instruction bound to the processor state, as run by the block engine.
+     * Running a handler has exactly the same effect as running the
+     * instruction through <tt>Instruction</tt> once it has been fetched.
+     */
+    private abstract class Handler {
+	Handler(Decoded decoded) {
+	    rs = decoded.rs;
+	    rt = decoded.rt;
+	    imm = decoded.imm;
+	    dstReg = decoded.dstReg;
+	}
+
+	abstract void run() throws MipsException;
+
+	/** Advance the PC to the next sequential instruction. */
+	void next() {
+	    registers[regPC] = registers[regNextPC];
+	    registers[regNextPC] += 4;
+	}
+
+	final int rs, rt, imm, dstReg;
+    }
+
+    private class Arithmetic extends Handler {
+	Arithmetic(Decoded decoded) {
+	    super(decoded);
+	    operation = decoded.operation;
+	    sh = decoded.sh;
+	    shiftImmediate = Lib.test(Mips.SRC1SH, decoded.flags);
+	    immediate = Lib.test(Mips.SRC2IMM, decoded.flags);
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	}
+
+	void run() {
+	    int src1 = shiftImmediate ? sh : registers[rs];
+	    int src2 = immediate ? imm : registers[rt];
+	    int dst;
+
+	    switch (operation) {
+	    case Mips.ADD:
+		dst = src1 + src2;
+		break;
+	    case Mips.SUB:
+		dst = src1 - src2;
+		break;
+	    case Mips.SLL:
+		dst = src2 << (src1&0x1F);
+		break;
+	    case Mips.SRA:
+	    case Mips.SRL:
+		// the interpreter shifts a sign-extended long, so SRL is
+		// arithmetic too
+		dst = src2 >> (src1&0x1F);
+		break;
+	    case Mips.SLT:
+		if (unsigned)
+		    dst = ((src1&0xFFFFFFFFL) < (src2&0xFFFFFFFFL)) ? 1 : 0;
+		else
+		    dst = (src1 < src2) ? 1 : 0;
+		break;
+	    case Mips.AND:
+		dst = src1 & src2;
+		break;
+	    case Mips.OR:
+		dst = src1 | src2;
+		break;
+	    case Mips.NOR:
+		dst = ~(src1 | src2);
+		break;
+	    case Mips.XOR:
+		dst = src1 ^ src2;
+		break;
+	    default:
+		dst = imm << 16;
+		break;
+	    }
+
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = dst;
+
+	    next();
+	}
+
+	final int operation, sh;
+	final boolean shiftImmediate, immediate, unsigned;
+    }
+
+    private class Load extends Handler {
+	Load(Decoded decoded) {
+	    super(decoded);
+	    size = decoded.size;
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	}
+
+	void run() throws MipsException {
+	    int value = readMem(registers[rs] + imm, size);
+
+	    if (!unsigned)
+		value = Lib.extend(value, 0, size*8);
+
+	    delayedLoad(dstReg, value, 0xFFFFFFFF);
+	    next();
+	}
+
+	final int size;
+	final boolean unsigned;
+    }
+
+    private class Store extends Handler {
+	Store(Decoded decoded) {
+	    super(decoded);
+	    size = decoded.size;
+	}
+
+	void run() throws MipsException {
+	    writeMem(registers[rs] + imm, size, registers[rt]);
+	    finishLoad();
+	    next();
+	}
+
+	final int size;
+    }
+
+    private class Branch extends Handler {
+	Branch(Decoded decoded) {
+	    super(decoded);
+	    operation = decoded.operation;
+	    branchOffset = decoded.branchOffset;
+	}
+
+	void run() {
+	    int src1 = registers[rs];
+	    int src2 = registers[rt];
+	    boolean branch;
+
+	    switch (operation) {
+	    case Mips.BEQ:
+		branch = (src1 == src2);
+		break;
+	    case Mips.BNE:
+		branch = (src1 != src2);
+		break;
+	    case Mips.BGEZ:
+		branch = (src1 >= 0);
+		break;
+	    case Mips.BGTZ:
+		branch = (src1 > 0);
+		break;
+	    case Mips.BLEZ:
+		branch = (src1 <= 0);
+		break;
+	    default:
+		branch = (src1 < 0);
+		break;
+	    }
+
+	    finishLoad();
+
+	    int nextPC = registers[regNextPC] + (branch ? branchOffset : 4);
+	    registers[regPC] = registers[regNextPC];
+	    registers[regNextPC] = nextPC;
+	}
+
+	final int operation, branchOffset;
+    }
+
+    private class Jump extends Handler {
+	Jump(Decoded decoded) {
+	    super(decoded);
+	    register = (decoded.format == Mips.RFMT);
+	    link = Lib.test(Mips.LINK, decoded.flags);
+	    target = decoded.target << 2;
+	}
+
+	void run() {
+	    int jtarget;
+	    if (register)
+		jtarget = registers[rs];
+	    else
+		jtarget = (registers[regNextPC]&0xF0000000) | target;
+
+	    finishLoad();
+
+	    if (link && dstReg != 0)
+		registers[dstReg] = registers[regNextPC] + 4;
+
+	    registers[regPC] = registers[regNextPC];
+	    registers[regNextPC] = jtarget;
+	}
+
+	final boolean register, link;
+	final int target;
+    }
+
+    private class MoveFrom extends Handler {
+	MoveFrom(Decoded decoded) {
+	    super(decoded);
+	    source = (decoded.operation == Mips.MFLO) ? regLo : regHi;
+	}
+
+	void run() {
+	    int value = registers[source];
+
+	    finishLoad();
+
+	    if (dstReg != 0)
+		registers[dstReg] = value;
+
+	    next();
+	}
+
+	final int source;
+    }
+
+    private class Multiply extends Handler {
+	Multiply(Decoded decoded) {
+	    super(decoded);
+	    unsigned = Lib.test(Mips.UNSIGNED, decoded.flags);
+	}
+
+	void run() {
+	    long src1 = registers[rs];
+	    long src2 = registers[rt];
+
+	    if (unsigned) {
+		src1 &= 0xFFFFFFFFL;
+		src2 &= 0xFFFFFFFFL;
+	    }
+
+	    long dst = src1 * src2;
+	    registers[regLo] = (int) dst;
+	    registers[regHi] = (int) (dst >> 32);
+
+	    finishLoad();
+	    next();
+	}
+
+	final boolean unsigned;
+    }
+
+    private class Generic extends Handler {
+	Generic(Decoded decoded) {
+	    super(decoded);
+	    this.decoded = decoded;
+	}
+
+	void run() throws MipsException {
+	    inst.run(decoded);
+	}
+
+	final Decoded decoded;
+	final Instruction inst = new Instruction();
+    }
+
+    /**
+     * The parts of an instruction that depend only on the instruction word,
+     * computed once and kept in the decode cache.
+     */
+    static class Decoded {
+	Decoded(int value) {
+	    this.value = value;
+	    
+	    op = Lib.extract(value, 26, 6);
+	    rs = Lib.extract(value, 21, 5);
+	    rt = Lib.extract(value, 16, 5);
+	    rd = Lib.extract(value, 11, 5);
+	    sh = Lib.extract(value, 6, 5);
+	    func = Lib.extract(value, 0, 6);
+	    target = Lib.extract(value, 0, 26);
+	    int imm = Lib.extend(value, 0, 16);
+
+	    Mips info;
+	    switch (op) {
+	    case 0:
+		info = Mips.specialtable[func];
+		break;
+	    case 1:
+		info = Mips.regimmtable[rt];
+		break;
+	    default:
+		info = Mips.optable[op];
+		break;
+	    }
+
+	    operation = info.operation;
+	    name = info.name;
+	    format = info.format;
+	    flags = info.flags;
+
+	    // get memory access size
+	    if (Lib.test(Mips.SIZEB, flags))
+		size = 1;
+	    else if (Lib.test(Mips.SIZEH, flags))
+		size = 2;
+	    else if (Lib.test(Mips.SIZEW, flags))
+		size = 4;
+	    else
+		size = 0;
+
+	    // get dstReg
+	    if (Lib.test(Mips.DSTRA, flags))
+		dstReg = regRA;
+	    else if (format == Mips.IFMT)
+		dstReg = rt;
+	    else if (format == Mips.RFMT)
+		dstReg = rd;
+	    else
+		dstReg = -1;
+
+	    // branch offsets use the sign-extended immediate
+	    branchOffset = imm<<2;
+
+	    // get imm
+	    if (Lib.test(Mips.UNSIGNED, flags)) {
+		imm &= 0xFFFF;
+	    }
+	    this.imm = imm;
+	}
+
+	final int value, op, rs, rt, rd, sh, func, target, imm, branchOffset;
+	final int operation, format, flags, size, dstReg;
+	final String name;
+    }
+
+    static class Mips {
 	Mips() {
 	}
 
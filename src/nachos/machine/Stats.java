@@ -29,6 +29,17 @@ public final class Stats {
 			   + ", TLB misses " + numTLBMisses);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
+	if (pagingPolicy != null) {
+	    System.out.println("Swap (" + pagingPolicy + "): page-ins "
+			       + numPageIns + ", page-outs " + numPageOuts
+			       + ", reads " + numSwapReads
+			       + ", writes " + numSwapWrites);
+	}
+	if (numDeadlines > 0) {
+	    System.out.println("Deadlines: met "
+			       + (numDeadlines - numDeadlineMisses)
+			       + ", missed " + numDeadlineMisses);
+	}
     }
 
     /**
@@ -57,10 +68,30 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /**
+     * The page replacement policy the kernel is using, or <tt>null</tt> if it
+     * does not do demand paging.
+     */
+    public String pagingPolicy = null;
+    /** The total number of pages the kernel has brought in on faults. */
+    public int numPageIns = 0;
+    /** The total number of pages the kernel has evicted. */
+    public int numPageOuts = 0;
+    /** The total number of pages the kernel has read from swap. */
+    public int numSwapReads = 0;
+    /** The total number of pages the kernel has written to swap. */
+    public int numSwapWrites = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
     public int numPacketsReceived = 0;
+    /**
+     * The total number of jobs of periodic threads that have finished, and so
+     * were either done by their deadlines or not. Only printed if nonzero.
+     */
+    public int numDeadlines = 0;
+    /** The total number of those jobs that finished after their deadlines. */
+    public int numDeadlineMisses = 0;
 
     /**
      * The amount to advance simulated time after each user instructions is
@@ -6,7 +6,11 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
 import java.security.PrivilegedAction;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 
 /**
  * A TCB simulates the low-level details necessary to create, context-switch,
@@ -14,6 +18,13 @@ import java.security.PrivilegedAction;
  * object.
  *
  * <p>
+ * If <tt>TCB.virtualThreads</tt> is set in the configuration file and the
+ * JVM supports them, each TCB is backed by a virtual thread rather than a
+ * platform thread. Virtual threads are cheap enough that up to
+ * <tt>maxVirtualThreads</tt> TCBs may be in existence, instead of
+ * <tt>maxThreads</tt>.
+ *
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -40,6 +51,56 @@ public final class TCB {
     public static void givePrivilege(Privilege privilege) {
 	TCB.privilege = privilege;
 	privilege.tcb = new TCBPrivilege();
+
+	if (Config.getBoolean("TCB.virtualThreads", false))
+	    findVirtualThreadBuilder();
+
+	threadLimit = (virtualThreadBuilder != null) ? maxVirtualThreads
+						     : maxThreads;
+    }
+
+    /**
+     * Look up <tt>Thread.ofVirtual().unstarted(Runnable)</tt>, which only
+     * exists in Java 21 and later. This has to be done reflectively, so that
+     * Nachos still builds and runs on older JVMs, which get platform threads
+     * instead.
+     */
+    private static void findVirtualThreadBuilder() {
+	try {
+	    MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+	    Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+	    Class<?> ofVirtualClass =
+		Class.forName("java.lang.Thread$Builder$OfVirtual");
+
+	    Object builder =
+		lookup.findStatic(Thread.class, "ofVirtual",
+				  MethodType.methodType(ofVirtualClass))
+		.invoke();
+
+	    virtualThreadBuilder =
+		lookup.findVirtual(builderClass, "unstarted",
+				   MethodType.methodType(Thread.class,
+							 Runnable.class))
+		.bindTo(builder);
+	}
+	catch (Throwable e) {
+	    System.err.println("\nWarning: virtual threads are not supported " +
+			       "by this JVM, using platform threads");
+	    virtualThreadBuilder = null;
+	}
+    }
+
+    private static Thread newJavaThread(Runnable target) {
+	if (virtualThreadBuilder == null)
+	    return new Thread(target);
+
+	try {
+	    return (Thread) virtualThreadBuilder.invoke(target);
+	}
+	catch (Throwable e) {
+	    Lib.assertNotReached("could not create virtual thread: " + e);
+	    return null;
+	}
     }
     
     /**
@@ -66,7 +127,7 @@ public final class TCB {
 	/* Make sure there aren't too many running TCBs already. This
 	 * limitation exists in an effort to prevent wild thread usage.
 	 */
-	Lib.assertTrue(runningThreads.size() < maxThreads);
+	Lib.assertTrue(runningThreads.size() < threadLimit);
 
 	isFirstTCB = (currentTCB == null);
 
@@ -86,26 +147,42 @@ public final class TCB {
 	this.target = target;
 
 	if (!isFirstTCB) {
-	    /* If this is not the first TCB, we have to make a new Java thread
-	     * to run it. Creating Java threads is a privileged operation.
+	    /* If this is not the first TCB, we need a Java thread to run it.
+	     * We reuse an idle carrier left behind by a destroyed TCB if there
+	     * is one, and otherwise make a new Java thread. Creating Java
+	     * threads is a privileged operation.
 	     */
-	    tcbTarget = new Runnable() {
-		    public void run() { threadroot(); }
-		};
-
-	    privilege.doPrivileged(new Runnable() {
-		    public void run() { javaThread = new Thread(tcbTarget); }
-		});
+	    final TCB tcb = this;
 
-	    /* The Java thread hasn't yet started, but we need to get it
+	    /* The carrier isn't yet running this TCB, but we need to get it
 	     * blocking in yield(). We do this by temporarily turning off the
-	     * current TCB, starting the new Java thread, and waiting for it
+	     * current TCB, starting or waking the carrier, and waiting for it
 	     * to wake us up from threadroot(). Once the new TCB wakes us up,
 	     * it's safe to context switch to the new TCB.
 	     */
 	    currentTCB.running = false;
-	    
-	    this.javaThread.start();
+
+	    if (!idleCarriers.isEmpty()) {
+		carrier = idleCarriers.remove(idleCarriers.size()-1);
+		javaThread = carrier.javaThread;
+		carrier.run(this);
+	    }
+	    else {
+		carrier = new Carrier();
+
+		/* Starting a virtual thread can also start the scheduler's
+		 * carrier threads, which needs privilege as much as creating
+		 * the thread does.
+		 */
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+			    carrier.javaThread = newJavaThread(carrier);
+			    javaThread = carrier.javaThread;
+			    carrier.start(tcb);
+			}
+		    });
+	    }
+
 	    currentTCB.waitForInterrupt();
 	}
 	else {
@@ -247,6 +324,17 @@ public final class TCB {
 	    runningThreads.removeElement(this);
 	    if (runningThreads.isEmpty())
 		privilege.exit(0);
+
+	    /* Return our Java thread to the pool before acknowledging
+	     * destroy(), so that the pool is only ever touched by the TCB
+	     * that holds the CPU.
+	     */
+	    if (carrier != null && idleCarriers.size() < maxIdleCarriers)
+		idleCarriers.add(carrier);
+	    else
+		carrier = null;
+
+	    currentTCB.interrupt();
 	}
 	catch (Throwable e) {
 	    System.out.print("\n");
@@ -265,44 +353,48 @@ public final class TCB {
      * wait for another TCB to context switch to this TCB. Since this TCB
      * might get destroyed instead, we check the <tt>done</tt> flag after
      * waking up. If it is set, the TCB that woke us up is waiting for an
-     * acknowledgement in destroy(). Otherwise, we just set the current TCB to
-     * this TCB and return.
+     * acknowledgement in destroy(), which <tt>threadroot()</tt> sends after
+     * catching the <tt>ThreadDeath</tt> we throw. Otherwise, we just set the
+     * current TCB to this TCB and return.
      */
     private void yield() {
 	waitForInterrupt();
 	
-	if (done) {
-	    currentTCB.interrupt();
+	// threadroot() acknowledges once this TCB is cleaned up
+	if (done)
 	    throw new ThreadDeath();
-	}
 
 	currentTCB = this;
     }
 
     /**
-     * Waits on the monitor bound to this TCB until its <tt>running</tt> flag
+     * Parks the Java thread bound to this TCB until its <tt>running</tt> flag
      * is set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a
      * TCB needs to go to wait for its turn to run. This includes the ping-pong
      * process of starting and destroying TCBs, as well as in context switching
      * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
      * is updated by <tt>contextSwitch()</tt> before we get called.
+     *
+     * <p>
+     * <tt>park()</tt> may return spuriously, or because of a permit left over
+     * from an <tt>unpark()</tt> that arrived before we parked, so the flag is
+     * checked again each time.
      */
-    private synchronized void waitForInterrupt() {
-	while (!running) {
-	    try { wait(); }
-	    catch (InterruptedException e) { }
-	}
+    private void waitForInterrupt() {
+	while (!running)
+	    LockSupport.park(this);
     }
 
     /**
      * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-     * and signalling the monitor bound to it. Used in the ping-pong process of
-     * starting and destroying TCBs, as well as in context switching to this
-     * TCB.
+     * and unparking the Java thread bound to it. Used in the ping-pong process
+     * of starting and destroying TCBs, as well as in context switching to this
+     * TCB. Unlike a monitor, this does not pin a virtual thread to its carrier
+     * thread.
      */
-    private synchronized void interrupt() {
+    private void interrupt() {
 	running = true;
-	notify();
+	LockSupport.unpark(javaThread);
     }
 
     private void associateThread(KThread thread) {
@@ -328,10 +420,28 @@ public final class TCB {
 
     /**
      * The maximum number of started, non-destroyed TCB's that can be in
-     * existence.
+     * existence when they are backed by platform threads.
      */
     public static final int maxThreads = 250;
 
+    /**
+     * The maximum number of started, non-destroyed TCB's that can be in
+     * existence when they are backed by virtual threads.
+     */
+    public static final int maxVirtualThreads = 10000;
+
+    /**
+     * The limit actually enforced by <tt>start(Runnable)</tt>, either
+     * <tt>maxThreads</tt> or <tt>maxVirtualThreads</tt>.
+     */
+    private static int threadLimit = maxThreads;
+
+    /**
+     * <tt>Thread.ofVirtual().unstarted(Runnable)</tt>, bound to a virtual
+     * thread builder, or <tt>null</tt> if TCBs use platform threads.
+     */
+    private static MethodHandle virtualThreadBuilder = null;
+
     /**
      * A reference to the currently running TCB. It is initialized to
      * <tt>null</tt> when the <tt>TCB</tt> class is loaded, and then the first
@@ -354,7 +464,7 @@ public final class TCB {
      * on each TCB object. TCB objects are removed only in each of the
      * <tt>catch</tt> clauses of <tt>threadroot()</tt>, one of which is always
      * invoked on thread termination. The maximum number of threads in
-     * <tt>runningThreads</tt> is limited to <tt>maxThreads</tt> by
+     * <tt>runningThreads</tt> is limited to <tt>threadLimit</tt> by
      * <tt>start(Runnable)</tt>. If <tt>threadroot()</tt> drops the number of
      * TCB objects in <tt>runningThreads</tt> to zero, Nachos exits, so once
      * the first TCB is created, this vector is basically never empty.
@@ -386,9 +496,10 @@ public final class TCB {
      * started and have not terminated. <tt>running</tt> is only <tt>true</tt>
      * when the associated Java thread ought to run ASAP. When starting or
      * destroying a TCB, this is temporarily true for a thread other than that
-     * of the current TCB.
+     * of the current TCB. It is volatile because it is the only thing that
+     * orders one TCB's work before the next one's.
      */
-    private boolean running = false;
+    private volatile boolean running = false;
 
     /**
      * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -400,7 +511,67 @@ public final class TCB {
     private KThread nachosThread = null;
     private boolean associated = false;
     private Runnable target;
-    private Runnable tcbTarget;
+
+    /**
+     * The carrier whose Java thread runs this TCB, or <tt>null</tt> for the
+     * first TCB, which runs in the thread that started Nachos.
+     */
+    private Carrier carrier = null;
+
+    /**
+     * A Java thread that runs one TCB after another. When its TCB is
+     * destroyed, the carrier goes back into <tt>idleCarriers</tt> and parks
+     * until <tt>start(Runnable)</tt> hands it another TCB, which saves
+     * creating a new Java thread for every short-lived Nachos thread.
+     */
+    private static class Carrier implements Runnable {
+	/**
+	 * Start this carrier's Java thread, running its first TCB. This must
+	 * be done with privilege.
+	 */
+	void start(TCB tcb) {
+	    next = tcb;
+	    javaThread.start();
+	}
+
+	/**
+	 * Hand this idle carrier another TCB to run.
+	 */
+	void run(TCB tcb) {
+	    next = tcb;
+	    LockSupport.unpark(javaThread);
+	}
+
+	public void run() {
+	    while (true) {
+		TCB tcb;
+		while ((tcb = next) == null)
+		    LockSupport.park(this);
+		next = null;
+
+		tcb.threadroot();
+
+		// threadroot() only returns once its TCB has been destroyed
+		if (tcb.carrier != this)
+		    return;
+	    }
+	}
+
+	Thread javaThread;
+	private volatile TCB next = null;
+    }
+
+    /**
+     * Carriers whose TCBs have been destroyed, waiting to be reused. Like
+     * <tt>currentTCB</tt>, this is only used by the TCB that holds the CPU.
+     */
+    private static Vector<Carrier> idleCarriers = new Vector<Carrier>();
+
+    /**
+     * The maximum number of idle carriers kept for reuse. Any more are
+     * allowed to terminate.
+     */
+    private static final int maxIdleCarriers = 64;
 
     private static class TCBPrivilege implements Privilege.TCBPrivilege {
 	public void associateThread(KThread thread) {
@@ -59,6 +59,18 @@ public final class Timer {
 	return privilege.stats.totalTicks;
     }
 
+    /**
+     * Record that a job of a periodic thread has finished, so that it is
+     * counted in the statistics printed when Nachos halts.
+     *
+     * @param	missed	<tt>true</tt> if the job finished after its deadline.
+     */
+    public void recordDeadline(boolean missed) {
+	privilege.stats.numDeadlines++;
+	if (missed)
+	    privilege.stats.numDeadlineMisses++;
+    }
+
     private void timerInterrupt() {
 	scheduleInterrupt();
 	scheduleAutoGraderInterrupt();
@@ -26,9 +26,9 @@ public class PostOffice {
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
 
-	queues = new SynchList[MailMessage.portLimit];
+	queues = newQueues(MailMessage.portLimit);
 	for (int i=0; i<queues.length; i++)
-	    queues[i] = new SynchList();
+	    queues[i] = new SynchList<MailMessage>();
 
 	Runnable receiveHandler = new Runnable() {
 	    public void run() { receiveInterrupt(); }
@@ -58,7 +58,31 @@ public class PostOffice {
 
 	Lib.debug(dbgNet, "waiting for mail on port " + port);
 
-	MailMessage mail = (MailMessage) queues[port].removeFirst();
+	MailMessage mail = queues[port].removeFirst();
+
+	if (Lib.test(dbgNet))
+	    System.out.println("got mail on port " + port + ": " + mail);
+
+	return mail;
+    }
+
+    /**
+     * Retrieve a message on the specified port, waiting at most
+     * <i>timeout</i> ticks for one to arrive.
+     *
+     * @param	port	the port on which to wait for a message.
+     * @param	timeout	the most ticks to wait.
+     *
+     * @return	the message received, or <tt>null</tt> if none arrived in
+     *		time.
+     */
+    public MailMessage receive(int port, long timeout) {
+	Lib.assertTrue(port >= 0 && port < queues.length);
+
+	Lib.debug(dbgNet, "waiting " + timeout + " ticks for mail on port "
+		  + port);
+
+	MailMessage mail = queues[port].poll(timeout);
 
 	if (Lib.test(dbgNet))
 	    System.out.println("got mail on port " + port + ": " + mail);
@@ -125,7 +149,12 @@ public class PostOffice {
 	messageSent.V();
     }
 
-    private SynchList[] queues;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static SynchList<MailMessage>[] newQueues(int n) {
+	return (SynchList<MailMessage>[]) new SynchList[n];
+    }
+
+    private SynchList<MailMessage>[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
     private Lock sendLock;
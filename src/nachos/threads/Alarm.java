@@ -1,14 +1,24 @@
 package nachos.threads;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Queue;
 
 import nachos.machine.*;
 
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ *
+ * <p>
+ * Pending wakeups are kept in a hierarchical timing wheel. Time is divided
+ * into slots of <tt>1 &lt;&lt; slotShift</tt> ticks, and each level of the
+ * wheel has a bucket for each of the next <tt>wheelSize</tt> slots of its
+ * own, each of which covers <tt>wheelSize</tt> slots of the level below. A
+ * wakeup is added to the bucket of the lowest level that reaches its time,
+ * and is moved down a level each time the wheel turns far enough, so adding
+ * or cancelling one takes constant time, and each timer interrupt only looks
+ * at the slots that have passed since the last one.
  */
 public class Alarm {
 	/**
@@ -22,8 +32,16 @@ public class Alarm {
 	static char debugFlag = 'A';
 
 	public Alarm() {
-		this.waitQueue = new PriorityQueue<AlarmThread>();
-		this.waitQueueLock = new Lock();
+		wheel = new Timeout[numLevels][wheelSize];
+		for (int level = 0; level < numLevels; level++) {
+			for (int i = 0; i < wheelSize; i++) {
+				Timeout head = new Timeout(null, null);
+				head.prev = head.next = head;
+				wheel[level][i] = head;
+			}
+		}
+		currentSlot = Machine.timer().getTime() >> slotShift;
+
 		Machine.timer().setInterruptHandler(new Runnable() {
 			public void run() {
 				timerInterrupt();
@@ -33,23 +51,43 @@ public class Alarm {
 
 	/**
 	 * The timer interrupt handler. This is called by the machine's timer
-	 * periodically (approximately every 500 clock ticks). Causes the current
-	 * thread to yield, forcing a context switch if there is another thread that
-	 * should be run.
+	 * periodically (approximately every 500 clock ticks). Wakes any threads
+	 * whose time has come, then lets the scheduler decide whether the current
+	 * thread should yield, forcing a context switch if there is another thread
+	 * that should be run.
 	 */
 	public void timerInterrupt() {
-		// Lock to prevent concurrent modification of the alarm queue
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueueLock.acquire();
-		while (!waitQueue.isEmpty()) {
-			if (waitQueue.peek().getTime() <= Machine.timer().getTime()) {
-				Lib.debug(debugFlag, "Requeueing " + waitQueue.peek() + ", current time " + Machine.timer().getTime());
-				waitQueue.poll().getThread().ready();
-			} else {
+
+		long time = Machine.timer().getTime();
+		long slot = time >> slotShift;
+
+		while (true) {
+			expire(wheel[0][(int) (currentSlot & wheelMask)], time);
+			if (currentSlot >= slot)
 				break;
+
+			currentSlot++;
+			cascade();
+		}
+
+		// a bucket is in the order its timeouts were added, so put the ones
+		// that are due in the order of their times before firing any
+		if (due.size() > 1)
+			Collections.sort(due, byTime);
+		for (int i = 0; i < due.size(); i++) {
+			Timeout timeout = due.get(i);
+
+			// an earlier handler may have cancelled it
+			if (timeout.pending) {
+				timeout.pending = false;
+				timeout.fire();
 			}
 		}
-		waitQueueLock.release();
+		due.clear();
+
+		// give the scheduler its chance to preempt the current thread
+		ThreadedKernel.scheduler.timerInterrupt();
 		Machine.interrupt().restore(intStatus);
 	}
 
@@ -67,7 +105,7 @@ public class Alarm {
 	 * @see nachos.machine.Timer#getTime()
 	 */
 	public void waitUntil(long x) {
-		long wakeTime = Machine.timer().getTime() + x;
+		KThread thread = KThread.currentThread();
 
 		/*
 		 * It might be possible, with a short enough wait time, for a thread to
@@ -77,56 +115,264 @@ public class Alarm {
 		 * put itself to sleep(), never to wake up again.
 		 */
 		boolean intStatus = Machine.interrupt().disable();
-		waitQueueLock.acquire();
-		waitQueue.offer(new AlarmThread(wakeTime, KThread.currentThread()));
-		waitQueueLock.release();
+
+		// a thread only sleeps on one wakeup at a time, so it keeps reusing
+		// the same one
+		if (thread.alarmTimeout == null)
+			thread.alarmTimeout = new Timeout(thread, null);
+
+		add(thread.alarmTimeout, Machine.timer().getTime() + x);
 		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * A variant of <tt>waitUntil()</tt> that does not block. Instead,
+	 * <i>handler</i> is run in the first timer interrupt at least <i>x</i>
+	 * ticks from now, with interrupts disabled, unless the returned timeout
+	 * has been cancelled by then. A timeout that is cancelled costs no more
+	 * than one that fires.
+	 *
+	 * <p>
+	 * The handler runs in the interrupt handler, so it must not block. It
+	 * will usually wake up a thread, or add another timeout.
+	 *
+	 * @param x
+	 *            the minimum number of clock ticks to wait.
+	 * @param handler
+	 *            the callback to run when the time is up.
+	 * @return a timeout that can be cancelled.
+	 */
+	public Timeout waitUntil(long x, Runnable handler) {
+		Lib.assertTrue(handler != null);
+
+		Timeout timeout = new Timeout(null, handler);
+
+		boolean intStatus = Machine.interrupt().disable();
+		add(timeout, Machine.timer().getTime() + x);
+		Machine.interrupt().restore(intStatus);
+
+		return timeout;
+	}
+
+	/**
+	 * End the current job of the current thread, which must have been
+	 * declared periodic with <tt>KThread.setPeriod()</tt>, and wait for the
+	 * release of its next job. Whether the job was done by its deadline is
+	 * counted in the statistics.
+	 *
+	 * <p>
+	 * The next job is released one period after the one just ended, and the
+	 * thread is woken up in the first timer interrupt at or after then. If
+	 * the job ran past that, the next one is released at once, and is
+	 * already late.
+	 *
+	 * @see nachos.threads.KThread#setPeriod
+	 */
+	public void waitForNextPeriod() {
+		KThread thread = KThread.currentThread();
+		Lib.assertTrue(thread.period > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		long time = Machine.timer().getTime();
+		long deadline = thread.release + thread.relativeDeadline;
+		if (time > deadline)
+			Lib.debug(debugFlag, thread + " missed its deadline " + deadline
+					+ " at " + time);
+		Machine.timer().recordDeadline(time > deadline);
+
+		// the deadline is set before sleeping, so the thread is already
+		// ordered by it when it is woken up
+		thread.release += thread.period;
+		ThreadedKernel.scheduler.setDeadline(thread,
+				thread.release + thread.relativeDeadline);
+
+		if (thread.release > time)
+			waitUntil(thread.release - time);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Add a timeout to the bucket that covers the specified time, at the
+	 * lowest level that reaches that far. Interrupts must be disabled.
+	 */
+	private void add(Timeout timeout, long time) {
+		timeout.time = time;
+		timeout.pending = true;
+		insert(timeout);
+	}
+
+	private void insert(Timeout timeout) {
+		long slot = timeout.time >> slotShift;
+		long distance = slot - currentSlot;
+
+		Timeout head;
+		if (distance < 0) {
+			// already due, so it goes off in the next interrupt
+			head = wheel[0][(int) (currentSlot & wheelMask)];
+		}
+		else {
+			int level = 0;
+			while (level < numLevels-1 &&
+					distance >= 1L << (levelBits * (level+1)))
+				level++;
+
+			// anything past the top level waits in its furthest bucket, and is
+			// placed again when that comes round
+			long limit = (1L << (levelBits * (level+1))) - 1;
+			if (distance > limit)
+				slot = currentSlot + limit;
+
+			head = wheel[level][(int) ((slot >> (levelBits*level)) & wheelMask)];
+		}
+
+		timeout.prev = head.prev;
+		timeout.next = head;
+		head.prev.next = timeout;
+		head.prev = timeout;
+	}
+
+	/**
+	 * Take every timeout in the specified bucket whose time is at or before
+	 * <i>time</i> off the wheel, to be fired. The rest, which can only be in
+	 * the current slot, stay where they are.
+	 */
+	private void expire(Timeout head, long time) {
+		if (head.next == head)
+			return;
+
+		Timeout timeout = head.next;
+		head.prev.next = null;
+		head.prev = head.next = head;
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+
+			if (timeout.time <= time) {
+				timeout.prev = timeout.next = null;
+				due.add(timeout);
+			}
+			else {
+				insert(timeout);
+			}
+
+			timeout = next;
+		}
+	}
+
+	/**
+	 * After the wheel has turned to a new slot, move the timeouts of every
+	 * level that has just turned down to the levels below.
+	 */
+	private void cascade() {
+		for (int level = 1; level < numLevels; level++) {
+			long index = currentSlot >> (levelBits * (level-1));
+			if ((index & wheelMask) != 0)
+				break;
+
+			Timeout head = wheel[level][(int) ((index >> levelBits) & wheelMask)];
+			Timeout timeout = head.next;
+			head.prev.next = null;
+			head.prev = head.next = head;
+
+			while (timeout != null && timeout != head) {
+				Timeout next = timeout.next;
+				insert(timeout);
+				timeout = next;
+			}
+		}
+	}
+
 	// Nachos convention seems to place member fields at the bottom of the
 	// source code
-	private Queue<AlarmThread> waitQueue;
-	private Lock waitQueueLock;
 
 	/**
-	 * Object designed for the alarm's priority queue, which stores
-	 * threads that are sleeping until a specific time in the future.
-	 * 
-	 * @author Christopher Childs, Eric Muehlberg, Vaishal Shah
-	 *
+	 * The bucket heads of every level of the wheel. Each bucket is a circular
+	 * doubly-linked list through its head.
 	 */
-	class AlarmThread implements Comparable<AlarmThread> {
-		private KThread thread;
-		private long time;
+	private Timeout[][] wheel;
+	/** The slot the wheel has turned to. */
+	private long currentSlot;
+	/** The timeouts going off in the current timer interrupt. */
+	private ArrayList<Timeout> due = new ArrayList<Timeout>();
+
+	private static final Comparator<Timeout> byTime = new Comparator<Timeout>() {
+		public int compare(Timeout a, Timeout b) {
+			return Long.compare(a.time, b.time);
+		}
+	};
 
-		public AlarmThread(long time, KThread thread) {
-			this.time = time;
+	/** Each slot is <tt>1 &lt;&lt; slotShift</tt> ticks. */
+	private static final int slotShift = 7;
+	private static final int levelBits = 6;
+	private static final int wheelSize = 1 << levelBits;
+	private static final long wheelMask = wheelSize - 1;
+	private static final int numLevels = 4;
+
+	/**
+	 * A pending wakeup, which either readies a sleeping thread or runs a
+	 * handler.
+	 */
+	public static class Timeout {
+		Timeout(KThread thread, Runnable handler) {
 			this.thread = thread;
+			this.handler = handler;
 		}
 
-		public long getTime() {
-			return this.time;
+		/**
+		 * Cancel this timeout, if it has not gone off yet.
+		 *
+		 * @return <tt>true</tt> if this timeout was still pending, and now
+		 *         never will go off.
+		 */
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			boolean wasPending = pending;
+			pending = false;
+
+			// it may already be off the wheel, about to be fired
+			if (next != null) {
+				prev.next = next;
+				next.prev = prev;
+				prev = next = null;
+			}
+
+			Machine.interrupt().restore(intStatus);
+			return wasPending;
 		}
 
-		public KThread getThread() {
-			return this.thread;
+		/**
+		 * Return whether this timeout is still waiting to go off.
+		 *
+		 * @return <tt>true</tt> if this timeout has neither gone off nor been
+		 *         cancelled.
+		 */
+		public boolean isPending() {
+			return pending;
 		}
 
-		public int compareTo(AlarmThread o) {
-			long otherTime = o.getTime();
-			if (this.time == otherTime)
-				return 0;
-			else if (this.time < otherTime) 
-				// a sooner time should have greater priority
-				return -1;
-			else
-				return 1;
+		private void fire() {
+			if (thread != null) {
+				Lib.debug(debugFlag, "Requeueing " + thread + ", current time "
+						+ Machine.timer().getTime());
+				thread.ready();
+			}
+			else {
+				handler.run();
+			}
 		}
-		
+
 		public String toString() {
 			return "waitTime: " + this.time;
 		}
 
+		private KThread thread;
+		private Runnable handler;
+		private long time;
+		private boolean pending = false;
+		private Timeout prev = null, next = null;
 	}
 }
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.Lib;
 import nachos.machine.Machine;
+import nachos.machine.Stats;
 import java.util.Random;
 
 public class AlarmTest {
@@ -20,12 +21,63 @@ public class AlarmTest {
 				Lib.debug(debugFlag, "Loop " + i + ", Current time: " + Machine.timer().getTime() + " / Sleeping until at least " + wait);
 				ThreadedKernel.alarm.waitUntil(waitTime);
 				Lib.debug(debugFlag, "Loop " + i + ", Wait time " + wait + " -- Woken up at " + Machine.timer().getTime());
+				Lib.assertTrue(Machine.timer().getTime() >= wait);
 
 			}
 		}
 	}
 	
+	/**
+	 * Sleepers far enough apart to land on every level of the wheel wake up
+	 * in the first timer interrupt at or after their time.
+	 */
+	private static void testPrecision() {
+		long[] waits = { 0, 1, 700, 9000, 600000, 40000000 };
+		for (int i = 0; i < waits.length; i++) {
+			long due = Machine.timer().getTime() + waits[i];
+			ThreadedKernel.alarm.waitUntil(waits[i]);
+			long late = Machine.timer().getTime() - due;
+			Lib.debug(debugFlag, "Waited " + waits[i] + ", woken " + late + " late");
+			Lib.assertTrue(late >= 0 && late < Stats.TimerTicks * 11 / 10);
+		}
+	}
+
+	/**
+	 * Timeouts run their handlers when due unless cancelled first, and a
+	 * handler may add another timeout.
+	 */
+	private static void testTimeouts() {
+		final int[] fired = new int[3];
+
+		Alarm.Timeout first = ThreadedKernel.alarm.waitUntil(2000, new Runnable() {
+			public void run() {
+				fired[0]++;
+			}
+		});
+		Alarm.Timeout cancelled = ThreadedKernel.alarm.waitUntil(3000, new Runnable() {
+			public void run() {
+				fired[1]++;
+			}
+		});
+		ThreadedKernel.alarm.waitUntil(1000, new Runnable() {
+			public void run() {
+				if (++fired[2] < 5)
+					ThreadedKernel.alarm.waitUntil(1000, this);
+			}
+		});
+
+		Lib.assertTrue(cancelled.cancel());
+		Lib.assertTrue(!cancelled.cancel());
+
+		ThreadedKernel.alarm.waitUntil(10000);
+		Lib.assertTrue(fired[0] == 1 && fired[1] == 0 && fired[2] == 5);
+		Lib.assertTrue(!first.isPending() && !first.cancel());
+	}
+
 	public static void runTest() {
+		testPrecision();
+		testTimeouts();
+
 		Random rg = new Random();
 		KThread testThreads[] = new KThread[100];
 		
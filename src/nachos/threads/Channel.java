@@ -0,0 +1,182 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A <i>channel</i> is a bounded buffer of 32-bit words. Unlike a
+ * <tt>Communicator</tt>, a speaker does not wait for a listener: it only waits
+ * while the buffer is full, and a listener only waits while it is empty. Words
+ * are listened to in the order they were spoken.
+ *
+ * <p>
+ * <tt>speakAll()</tt> and <tt>listenAll()</tt> move as many words at a time
+ * as there is room or words for, so a batch costs one wakeup each time the
+ * other side has to catch up, rather than one per word. A batch is only
+ * atomic if it does not have to wait: two speakers that both block may have
+ * their words interleaved, though each one's words stay in order.
+ *
+ * <p>
+ * Waiting threads sit on thread queues from the scheduler, so the scheduler
+ * chooses which of them is woken up next.
+ */
+public class Channel {
+	/**
+	 * Allocate a new channel.
+	 *
+	 * @param capacity
+	 *            the number of words the channel can hold before speakers
+	 *            have to wait.
+	 */
+	public Channel(int capacity) {
+		Lib.assertTrue(capacity > 0);
+
+		buffer = new int[capacity];
+		speakers = ThreadedKernel.scheduler.newThreadQueue(false);
+		listeners = ThreadedKernel.scheduler.newThreadQueue(false);
+	}
+
+	/**
+	 * Add <i>word</i> to this channel, waiting first while it is full.
+	 *
+	 * @param word
+	 *            the integer to transfer.
+	 */
+	public void speak(int word) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (count == buffer.length)
+			waitOn(speakers);
+
+		buffer[(head + count) % buffer.length] = word;
+		count++;
+
+		wakeOne(listeners);
+		if (count < buffer.length)
+			wakeOne(speakers);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Add every word in <i>words</i> to this channel, in order, waiting
+	 * whenever it is full.
+	 *
+	 * @param words
+	 *            the integers to transfer.
+	 */
+	public void speakAll(int[] words) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int i = 0;
+		while (true) {
+			int n = Math.min(words.length - i, buffer.length - count);
+			for (int j = 0; j < n; j++)
+				buffer[(head + count + j) % buffer.length] = words[i + j];
+			count += n;
+			i += n;
+
+			if (n > 0)
+				wakeOne(listeners);
+			if (i == words.length)
+				break;
+
+			waitOn(speakers);
+		}
+
+		// pass on whatever room is left to the next speaker
+		if (count < buffer.length)
+			wakeOne(speakers);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Remove the oldest word from this channel, waiting first while it is
+	 * empty.
+	 *
+	 * @return the integer transferred.
+	 */
+	public int listen() {
+		boolean intStatus = Machine.interrupt().disable();
+
+		while (count == 0)
+			waitOn(listeners);
+
+		int word = buffer[head];
+		head = (head + 1) % buffer.length;
+		count--;
+
+		wakeOne(speakers);
+		if (count > 0)
+			wakeOne(listeners);
+
+		Machine.interrupt().restore(intStatus);
+		return word;
+	}
+
+	/**
+	 * Fill <i>words</i> with the oldest words in this channel, in order,
+	 * waiting whenever it is empty.
+	 *
+	 * @param words
+	 *            the array to fill with the integers transferred.
+	 */
+	public void listenAll(int[] words) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		int i = 0;
+		while (true) {
+			int n = Math.min(words.length - i, count);
+			for (int j = 0; j < n; j++)
+				words[i + j] = buffer[(head + j) % buffer.length];
+			head = (head + n) % buffer.length;
+			count -= n;
+			i += n;
+
+			if (n > 0)
+				wakeOne(speakers);
+			if (i == words.length)
+				break;
+
+			waitOn(listeners);
+		}
+
+		// pass on whatever words are left to the next listener
+		if (count > 0)
+			wakeOne(listeners);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Put the current thread to sleep on the specified queue. Interrupts
+	 * must be disabled.
+	 */
+	private static void waitOn(ThreadQueue waiting) {
+		waiting.waitForAccess(KThread.currentThread());
+		KThread.sleep();
+	}
+
+	/**
+	 * Wake up the thread the scheduler picks from the specified queue, if
+	 * any. Interrupts must be disabled.
+	 */
+	private static void wakeOne(ThreadQueue waiting) {
+		KThread thread = waiting.nextThread();
+		if (thread != null)
+			thread.ready();
+	}
+
+	/** The words in the channel, as a ring starting at <tt>head</tt>. */
+	private int[] buffer;
+	private int head = 0;
+	private int count = 0;
+
+	/**
+	 * The threads waiting for room and for words. A thread that is woken up
+	 * takes what it can, and passes on what is left to the next one, so no
+	 * thread waits while there is something for it.
+	 */
+	private ThreadQueue speakers;
+	private ThreadQueue listeners;
+}
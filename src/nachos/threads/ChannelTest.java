@@ -0,0 +1,134 @@
+package nachos.threads;
+
+import java.util.Arrays;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the Channel class.
+ */
+public class ChannelTest {
+	static char debugFlag = 'R';
+
+	/**
+	 * Words spoken in batches come out in order when listened to in batches
+	 * of another size, through a channel smaller than either.
+	 */
+	private static void testOrder() {
+		final Channel channel = new Channel(5);
+		final int total = 1000;
+
+		KThread speaker = new KThread(new Runnable() {
+			public void run() {
+				int[] batch = new int[13];
+				for (int next = 0; next < total; ) {
+					int n = Math.min(batch.length, total - next);
+					int[] words = (n == batch.length) ? batch : new int[n];
+					for (int i = 0; i < n; i++)
+						words[i] = next++;
+					channel.speakAll(words);
+				}
+			}
+		}).setName("speaker");
+		speaker.fork();
+
+		int[] batch = new int[8];
+		int expected = 0;
+		while (expected + batch.length <= total) {
+			channel.listenAll(batch);
+			for (int i = 0; i < batch.length; i++)
+				Lib.assertTrue(batch[i] == expected++);
+		}
+		while (expected < total)
+			Lib.assertTrue(channel.listen() == expected++);
+
+		speaker.join();
+	}
+
+	/**
+	 * With several speakers and listeners mixing single words and batches,
+	 * every word is listened to exactly once, and each speaker's words in
+	 * the order it spoke them.
+	 */
+	private static void testMany() {
+		final Channel channel = new Channel(3);
+		final int numSpeakers = 4, perSpeaker = 300;
+		final int numListeners = 3;
+		final int[][] heard = new int[numListeners][numSpeakers];
+		final boolean[] inOrder = { true };
+		KThread[] threads = new KThread[numSpeakers + numListeners];
+
+		for (int s = 0; s < numSpeakers; s++) {
+			final int id = s;
+			threads[s] = new KThread(new Runnable() {
+				public void run() {
+					int[] pair = new int[2];
+					for (int i = 0; i < perSpeaker; i += 2) {
+						pair[0] = id * perSpeaker + i;
+						pair[1] = id * perSpeaker + i + 1;
+						if (id % 2 == 0) {
+							channel.speakAll(pair);
+						}
+						else {
+							channel.speak(pair[0]);
+							channel.speak(pair[1]);
+						}
+					}
+				}
+			}).setName("speaker" + s);
+		}
+
+		// the listeners take an equal share between them
+		final int share = numSpeakers * perSpeaker / numListeners;
+		for (int l = 0; l < numListeners; l++) {
+			final int id = l;
+			threads[numSpeakers + l] = new KThread(new Runnable() {
+				public void run() {
+					int[] last = new int[numSpeakers];
+					Arrays.fill(last, -1);
+
+					int[] batch = new int[5];
+					for (int got = 0; got < share; ) {
+						int n = Math.min(batch.length, share - got);
+						if (id == 0 || n < batch.length) {
+							batch[0] = channel.listen();
+							n = 1;
+						}
+						else {
+							channel.listenAll(batch);
+						}
+
+						for (int i = 0; i < n; i++) {
+							int speaker = batch[i] / perSpeaker;
+							if (batch[i] <= last[speaker])
+								inOrder[0] = false;
+							last[speaker] = batch[i];
+							heard[id][speaker]++;
+						}
+						got += n;
+					}
+				}
+			}).setName("listener" + l);
+		}
+
+		for (int i = 0; i < threads.length; i++)
+			threads[i].fork();
+		for (int i = 0; i < threads.length; i++)
+			threads[i].join();
+
+		Lib.assertTrue(inOrder[0]);
+		for (int s = 0; s < numSpeakers; s++) {
+			int total = 0;
+			for (int l = 0; l < numListeners; l++)
+				total += heard[l][s];
+			Lib.assertTrue(total == perSpeaker);
+		}
+	}
+
+	public static void runTest() {
+		System.out.println("**** Channel test START ****");
+		testOrder();
+		testMany();
+		System.out.println("**** Channel test FINISHED ****");
+	}
+}
@@ -2,6 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Set;
@@ -12,13 +13,16 @@ import java.util.Set;
  * threads can be waiting to <i>listen</i>. But there should never be a time
  * when both a speaker and a listener are waiting, because the two threads can
  * be paired off at this point.
+ *
+ * <p>
+ * Whichever of the two arrives second hands the word over directly: a speaker
+ * puts it where the waiting listener will find it, or a listener takes it from
+ * the waiting speaker, and then wakes up the other thread. Each word therefore
+ * costs one wakeup. Waiting threads sit on thread queues from the scheduler,
+ * like those of a <tt>Semaphore</tt>, so the scheduler chooses which of them
+ * is paired off next.
  */
 public class Communicator {
-	Lock communicatorLock;
-	Condition waitingToSpeak, waitingToListen;
-	Condition listenerCondition, speakerCondition;
-	boolean hasSpeaker, hasListener, listened, spoke;
-	int word;
 	static char debugFlag = 'R';
 	static Random rg = new Random();
 
@@ -26,15 +30,9 @@ public class Communicator {
 	 * Allocate a new communicator.
 	 */
 	public Communicator() {
-		communicatorLock = new Lock();
-		waitingToSpeak = new Condition(communicatorLock);
-		waitingToListen = new Condition(communicatorLock);
-		listenerCondition = new Condition(communicatorLock);
-		speakerCondition = new Condition(communicatorLock);
-		hasSpeaker = false;
-		hasListener = false;
-		listened = false;
-		spoke = false;
+		speakers = ThreadedKernel.scheduler.newThreadQueue(false);
+		listeners = ThreadedKernel.scheduler.newThreadQueue(false);
+		words = new HashMap<KThread, Integer>();
 	}
 
 	/**
@@ -49,41 +47,22 @@ public class Communicator {
 	 *            the integer to transfer.
 	 */
 	public void speak(int word) {
-		Lib.debug(debugFlag, "Speaker entering");
-		communicatorLock.acquire();
-		Lib.debug(debugFlag, "Speaker locked");
-		while (hasSpeaker) {
-			Lib.debug(debugFlag, "sleeping, we have a speaker");
-			waitingToSpeak.sleep();
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread listener = listeners.nextThread();
+		if (listener != null) {
+			Lib.debug(debugFlag, "Handing " + word + " to " + listener);
+			words.put(listener, word);
+			listener.ready();
 		}
-		Lib.debug(debugFlag, "Speaker awoken");
-		// if we're awake at this point, hasSpeaker is false
-		hasSpeaker = true;
-		listened = false;
-		// copy the word
-		this.word = word;
-		spoke = true;
-		Lib.debug(debugFlag, "speaker just spoke");
-		listenerCondition.wake();
-		// anybody listening?
-		while (!listened) {
-			Lib.debug(debugFlag, "No listener");
-			waitingToListen.wake();
-			speakerCondition.sleep();
-			Lib.debug(debugFlag, "Woken, rechecking listened");
+		else {
+			Lib.debug(debugFlag, "No listener, speaker waiting");
+			words.put(KThread.currentThread(), word);
+			speakers.waitForAccess(KThread.currentThread());
+			KThread.sleep();
 		}
-		Lib.debug(debugFlag, "speaker just woke, listener acknowledged");
-		// yes, this seems TOTALLY INSANE but it works
-		listenerCondition.wake();
-		speakerCondition.sleep();
-		listenerCondition.wake();
-		// postcondition: there's no longer a speaker when this exits.
-		hasSpeaker = false;
-		listened = false;
-		spoke = false;
-		Lib.debug(debugFlag, "Speaker now concluding");
-		waitingToSpeak.wake();
-		communicatorLock.release();
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -94,38 +73,24 @@ public class Communicator {
 	 */
 	public int listen() {
 		int word;
-		Lib.debug(debugFlag, "Listener entering");
-		communicatorLock.acquire();
-		Lib.debug(debugFlag, "Listener locked");
-		while (hasListener) {
-			Lib.debug(debugFlag, "sleeping, we have a listener");
-			waitingToListen.sleep();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread speaker = speakers.nextThread();
+		if (speaker != null) {
+			word = words.remove(speaker);
+			Lib.debug(debugFlag, "Taking " + word + " from " + speaker);
+			speaker.ready();
 		}
-		Lib.debug(debugFlag, "listener woken up");
-		hasListener = true;
-		// awake: no listener, so let's set our guard
-		listened = false;
-		speakerCondition.wake();
-		// anything to receive?
-		while (!spoke) {
-			Lib.debug(debugFlag, "nothing spoken");
-			waitingToSpeak.wake();
-			listenerCondition.sleep();
+		else {
+			Lib.debug(debugFlag, "Nothing spoken, listener waiting");
+			listeners.waitForAccess(KThread.currentThread());
+			KThread.sleep();
+			// the speaker left the word here before waking us
+			word = words.remove(KThread.currentThread());
 		}
-		word = this.word;
-		Lib.debug(debugFlag, "listener has copied word and is setting listened");
-		listened = true;
-		Lib.debug(debugFlag, "attempting to wake the speaker");
-		// similar insanity over here -- the exact opposite to speak()
-		speakerCondition.wake();
-		listenerCondition.sleep();
-		speakerCondition.wake();
-		hasListener = false;
-		spoke = false;
-		waitingToListen.wake();
-		Lib.debug(debugFlag, "Listener now concluding");
-		communicatorLock.release();
 
+		Machine.interrupt().restore(intStatus);
 		return word;
 	}
 
@@ -226,4 +191,12 @@ public class Communicator {
 			}
 		}
 	}
+
+	private ThreadQueue speakers;
+	private ThreadQueue listeners;
+	/**
+	 * The word each waiting speaker is handing over, and each woken listener
+	 * has been handed.
+	 */
+	private HashMap<KThread, Integer> words;
 }
@@ -5,7 +5,8 @@ import nachos.machine.*;
 import java.util.LinkedList;
 
 /**
- * An implementation of condition variables built upon semaphores.
+ * An implementation of condition variables that disables interrupts for
+ * synchronization.
  *
  * <p>
  * A condition variable is a synchronization primitive that does not have
@@ -32,9 +33,10 @@ import java.util.LinkedList;
  * <p>
  * In Nachos, condition variables are summed to obey <i>Mesa-style</i>
  * semantics. When a <tt>wake()</tt> or <tt>wakeAll()</tt> wakes up another
- * thread, the woken thread is simply put on the ready list, and it is the
- * responsibility of the woken thread to reacquire the lock (this reacquire is
- * taken core of in <tt>sleep()</tt>).
+ * thread, the woken thread is simply put on the ready list once the lock is
+ * released (or on the lock's wait queue, if the lock is handed to another
+ * thread), and it is the responsibility of the woken thread to reacquire the
+ * lock (this reacquire is taken core of in <tt>sleep()</tt>).
  *
  * <p>
  * By contrast, some implementations of condition variables obey
@@ -61,7 +63,7 @@ public class Condition {
     public Condition(Lock conditionLock) {
 	this.conditionLock = conditionLock;
 
-	waitQueue = new LinkedList<Semaphore>();
+	waitQueue = new LinkedList<KThread>();
     }
 
     /**
@@ -71,20 +73,24 @@ public class Condition {
      * automatically reacquire the lock before <tt>sleep()</tt> returns.
      *
      * <p>
-     * This implementation uses semaphores to implement this, by allocating a
-     * semaphore for each waiting thread. The waker will <tt>V()</tt> this
-     * semaphore, so thre is no chance the sleeper will miss the wake-up, even
-     * though the lock is released before caling <tt>P()</tt>.
+     * Interrupts are disabled from before the lock is released until the
+     * thread is asleep, so there is no chance the sleeper will miss the
+     * wake-up. The waker does not make the sleeper ready itself, but leaves
+     * that to <tt>Lock.release()</tt>, so the sleeper is not woken only to
+     * block again on the lock.
      */
     public void sleep() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
-	Semaphore waiter = new Semaphore(0);
-	waitQueue.add(waiter);
+	boolean intStatus = Machine.interrupt().disable();
 
+	waitQueue.add(KThread.currentThread());
 	conditionLock.release();
-	waiter.P();
-	conditionLock.acquire();	
+	KThread.sleep();
+
+	if (!conditionLock.isHeldByCurrentThread())
+	    conditionLock.acquire();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -94,8 +100,12 @@ public class Condition {
     public void wake() {
 	Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 
+	boolean intStatus = Machine.interrupt().disable();
+
 	if (!waitQueue.isEmpty())
-	    ((Semaphore) waitQueue.removeFirst()).V();
+	    conditionLock.requeue(waitQueue.removeFirst());
+
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -110,5 +120,5 @@ public class Condition {
     }
 
     private Lock conditionLock;
-    private LinkedList<Semaphore> waitQueue;
+    private LinkedList<KThread> waitQueue;
 }
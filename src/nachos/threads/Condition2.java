@@ -34,6 +34,12 @@ public class Condition2 {
 	 * variable until another thread wakes it using <tt>wake()</tt>. The current
 	 * thread must hold the associated lock. The thread will automatically
 	 * reacquire the lock before <tt>sleep()</tt> returns.
+	 * 
+	 * <p>
+	 * A thread woken with <tt>wake()</tt> or <tt>wakeAll()</tt> stays asleep
+	 * until the lock is released, and then either joins the lock's wait
+	 * queue or is made ready, so it is not run only to find the waker still
+	 * holding the lock.
 	 */
 	public void sleep() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
@@ -43,8 +49,51 @@ public class Condition2 {
 		conditionLock.release();
 		sleepingThreads.add(KThread.currentThread());
 		KThread.sleep();
-		conditionLock.acquire();
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
+		Machine.interrupt().restore(IntStatus);
+	}
+
+	/**
+	 * Like <tt>sleep()</tt>, but wake up by itself if no other thread has
+	 * woken it within <i>timeout</i> ticks. The thread reacquires the
+	 * associated lock before returning either way.
+	 * 
+	 * @param timeout
+	 *            the most ticks to sleep. If it is zero, this returns
+	 *            <tt>false</tt> at once, still holding the lock.
+	 * @return <tt>true</tt> if the thread was woken with <tt>wake()</tt> or
+	 *         <tt>wakeAll()</tt>, <tt>false</tt> if it timed out.
+	 */
+	public boolean sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+
+		if (timeout <= 0)
+			return false;
+
+		final KThread thread = KThread.currentThread();
+		final boolean[] timedOut = { false };
+		Runnable expire = new Runnable() {
+			public void run() {
+				// wake() may have taken us off the list already
+				if (sleepingThreads.remove(thread)) {
+					timedOut[0] = true;
+					thread.ready();
+				}
+			}
+		};
+
+		boolean IntStatus = Machine.interrupt().disable();
+		conditionLock.release();
+		sleepingThreads.add(thread);
+		Alarm.Timeout alarm = ThreadedKernel.alarm.waitUntil(timeout, expire);
+		KThread.sleep();
+		alarm.cancel();
+		if (!conditionLock.isHeldByCurrentThread())
+			conditionLock.acquire();
 		Machine.interrupt().restore(IntStatus);
+
+		return !timedOut[0];
 	}
 
 	public static void selfTest() {
@@ -63,7 +112,7 @@ public class Condition2 {
 
 		KThread thread = sleepingThreads.poll();
 		if (thread != null)
-			thread.ready();
+			conditionLock.requeue(thread);
 		
 		Machine.interrupt().restore(IntStatus);
 	}
@@ -79,7 +128,7 @@ public class Condition2 {
 
 		while (sleepingThreads.peek() != null) {
 			KThread thread = sleepingThreads.poll();
-			thread.ready();
+			conditionLock.requeue(thread);
 		}
 
 		Machine.interrupt().restore(IntStatus);
@@ -309,6 +309,48 @@ public class Condition2Test {
 		private int who;
 	}
 
+	/**
+	 * Threads woken while the waker keeps the lock, and gives up the CPU
+	 * before releasing it, each return from <tt>sleep()</tt> holding the lock
+	 * once it is released.
+	 */
+	private static void testWakeWhileHeld() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		final int[] woken = { 0 };
+		final boolean[] go = { false };
+		KThread[] waiters = new KThread[5];
+
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread(new Runnable() {
+				public void run() {
+					lock.acquire();
+					while (!go[0])
+						condition.sleep();
+					Lib.assertTrue(lock.isHeldByCurrentThread());
+					woken[0]++;
+					lock.release();
+				}
+			}).setName("waiter" + i);
+			waiters[i].fork();
+		}
+		for (int i = 0; i < waiters.length; i++)
+			KThread.yield();
+
+		lock.acquire();
+		go[0] = true;
+		condition.wake();
+		condition.wakeAll();
+		for (int i = 0; i < waiters.length; i++)
+			KThread.yield();
+		Lib.assertTrue(woken[0] == 0);
+		lock.release();
+
+		for (int i = 0; i < waiters.length; i++)
+			waiters[i].join();
+		Lib.assertTrue(woken[0] == waiters.length);
+	}
+
 	/**
 	 * Tests whether this module is working.
 	 */
@@ -342,6 +384,8 @@ public class Condition2Test {
 		}
 		buffer.mutex.release();
 
+		testWakeWhileHeld();
+
 		System.out.println("**** Condition testing ends ****");
 
 	}
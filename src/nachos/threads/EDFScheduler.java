@@ -0,0 +1,222 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * An earliest-deadline-first scheduler, which preempts threads on timer
+ * interrupts.
+ *
+ * <p>
+ * Every thread may have an absolute deadline, in ticks, given by
+ * <tt>setDeadline()</tt>. Periodic threads get theirs from
+ * <tt>KThread.setPeriod()</tt> and <tt>Alarm.waitForNextPeriod()</tt>. The
+ * thread dequeued is always the one with the earliest deadline, and threads
+ * with the same deadline are dequeued in the order they started waiting.
+ * Threads without a deadline come after all those with one, so they only run
+ * when no thread with a deadline is ready, and take turns at every timer
+ * interrupt like they would under the default round-robin preemption.
+ *
+ * <p>
+ * When a thread becomes ready with an earlier deadline than the current
+ * thread's, the current thread is preempted at the next timer interrupt. A
+ * periodic thread is woken up by a timer interrupt, so it preempts the
+ * current thread straight away.
+ *
+ * <p>
+ * This scheduler does not transfer deadlines.
+ */
+public class EDFScheduler extends Scheduler {
+    /**
+     * Allocate a new earliest-deadline-first scheduler.
+     */
+    public EDFScheduler() {
+    }
+
+    /**
+     * Allocate a new thread queue that orders threads by deadline. The
+     * <i>transferPriority</i> argument is ignored.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new DeadlineQueue();
+    }
+
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).deadline;
+    }
+
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	DeadlineQueue queue = state.waitQueue;
+
+	if (queue != null)
+	    queue.waiting.remove(state);
+	state.deadline = deadline;
+	if (queue != null)
+	    queue.waiting.add(state);
+    }
+
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	KThread current = KThread.currentThread();
+
+	if (preemptPending) {
+	    Lib.debug(dbgEDF, "Preempting " + current);
+	    preemptPending = false;
+	    KThread.yield();
+	}
+	else if (getThreadState(current).deadline == Long.MAX_VALUE) {
+	    // threads without deadlines share what's left round-robin
+	    KThread.yield();
+	}
+    }
+
+    public void switchThreads(KThread previous, KThread next) {
+	// whatever was ready with an earlier deadline is what gets to run now
+	preemptPending = false;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a balanced
+     * tree ordered by deadline, and then by when they started waiting.
+     */
+    protected class DeadlineQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    KThread current = KThread.currentThread();
+	    if (thread != current &&
+		state.deadline < getThreadState(current).deadline)
+		preemptPending = true;
+
+	    enqueue(state);
+	}
+
+	public void requeue(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(thread != KThread.currentThread());
+
+	    enqueue(getThreadState(thread));
+	}
+
+	private void enqueue(ThreadState state) {
+	    state.waitTime = numWaits++;
+	    state.waitQueue = this;
+	    waiting.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waiting.isEmpty())
+		return null;
+
+	    ThreadState state = waiting.pollFirst();
+	    state.waitQueue = null;
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    waiting.remove(state);
+	    state.waitQueue = null;
+
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waiting.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waiting.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.deadline + ") ");
+	    }
+	}
+
+	private TreeSet<ThreadState> waiting = new TreeSet<ThreadState>();
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	}
+
+	public int compareTo(ThreadState other) {
+	    if (deadline != other.deadline)
+		return (deadline < other.deadline) ? -1 : 1;
+	    else if (waitTime != other.waitTime)
+		return (waitTime < other.waitTime) ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The absolute deadline of the associated thread. */
+	protected long deadline = Long.MAX_VALUE;
+
+	/** The queue the associated thread is waiting on, if any. */
+	DeadlineQueue waitQueue = null;
+	/** When the associated thread started waiting on a queue. */
+	long waitTime;
+    }
+
+    /**
+     * Set when a thread becomes ready with an earlier deadline than the
+     * current thread's, so that the current thread is preempted at the next
+     * timer interrupt.
+     */
+    private boolean preemptPending = false;
+
+    private long numWaits = 0;
+
+    private static final char dbgEDF = 'd';
+}
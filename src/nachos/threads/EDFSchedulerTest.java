@@ -0,0 +1,183 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the EDFScheduler class. Only runs when the kernel was
+ * configured to use an <tt>EDFScheduler</tt>.
+ */
+public class EDFSchedulerTest {
+	static char debugFlag = 'd';
+
+	/**
+	 * Burn the specified number of ticks without yielding. Every time
+	 * interrupts are enabled again, the clock advances, and a timer
+	 * interrupt may preempt us.
+	 */
+	private static void spin(long ticks) {
+		long end = Machine.timer().getTime() + ticks;
+		while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	/**
+	 * Threads are dequeued by deadline, those without one last and in the
+	 * order they started waiting, and a new deadline takes effect while
+	 * waiting.
+	 */
+	private static void testOrder() {
+		Scheduler s = ThreadedKernel.scheduler;
+		ThreadQueue queue = s.newThreadQueue(false);
+		long[] deadlines = { 300, Long.MAX_VALUE, 100, Long.MAX_VALUE, 200 };
+		KThread[] threads = new KThread[deadlines.length];
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("order" + i);
+			s.setDeadline(threads[i], deadlines[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		s.setDeadline(threads[0], 50);
+
+		int[] expected = { 0, 2, 4, 1, 3 };
+		for (int i = 0; i < expected.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[expected[i]]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Periodic threads meet all their deadlines while a thread without a
+	 * deadline hogs the CPU.
+	 */
+	private static void testPeriodic() {
+		final boolean[] done = { false };
+		final long[][] tasks = { { 4000, 4000, 800 }, { 6000, 5000, 1200 } };
+		final long[] worst = new long[tasks.length];
+		KThread[] periodic = new KThread[tasks.length];
+
+		KThread hog = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0])
+					spin(100);
+			}
+		}).setName("background");
+		hog.fork();
+
+		for (int i = 0; i < tasks.length; i++) {
+			final int which = i;
+			periodic[i] = new KThread(new Runnable() {
+				public void run() {
+					KThread self = KThread.currentThread();
+					self.setPeriod(tasks[which][0], tasks[which][1]);
+
+					for (int j = 0; j < 10; j++) {
+						spin(tasks[which][2]);
+
+						long response = Machine.timer().getTime() - self.release;
+						worst[which] = Math.max(worst[which], response);
+						ThreadedKernel.alarm.waitForNextPeriod();
+					}
+				}
+			}).setName("periodic" + i);
+			periodic[i].fork();
+		}
+
+		for (int i = 0; i < periodic.length; i++)
+			periodic[i].join();
+		done[0] = true;
+		hog.join();
+
+		for (int i = 0; i < tasks.length; i++) {
+			Lib.debug(debugFlag, periodic[i] + " worst response time " +
+				  worst[i] + ", deadline " + tasks[i][1]);
+			Lib.assertTrue(worst[i] <= tasks[i][1]);
+		}
+	}
+
+	/**
+	 * A thread woken from a condition variable while the lock goes to
+	 * another thread only waits for the lock again; it is not ready, so
+	 * however early its deadline, it must not preempt the thread that
+	 * released the lock.
+	 */
+	private static void testLockRequeue() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		final Semaphore held = new Semaphore(0);
+		final boolean[] go = { false };
+		final boolean[] waiting = { false };
+		final boolean[] otherRan = { false };
+
+		KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				waiting[0] = true;
+				while (!go[0])
+					condition.sleep();
+				lock.release();
+			}
+		}).setName("waiter");
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				held.V();
+				// let the other thread block on the lock
+				ThreadedKernel.alarm.waitUntil(1000);
+
+				Lib.assertTrue(waiting[0]);
+				go[0] = true;
+				condition.wake();
+				lock.release();
+
+				spin(2000);
+				Lib.assertTrue(!otherRan[0]);
+			}
+		}).setName("holder");
+
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				held.P();
+				lock.acquire();
+				otherRan[0] = true;
+				lock.release();
+			}
+		}).setName("other");
+
+		// The waiter's deadline is the earliest. The other thread's is the
+		// same as the holder's, so it does not preempt the holder when it
+		// gets the lock, but would run first if the holder yielded.
+		Scheduler s = ThreadedKernel.scheduler;
+		boolean intStatus = Machine.interrupt().disable();
+		long now = Machine.timer().getTime();
+		s.setDeadline(waiter, now + 1000000);
+		s.setDeadline(holder, now + 2000000);
+		s.setDeadline(other, now + 2000000);
+		Machine.interrupt().restore(intStatus);
+
+		waiter.fork();
+		holder.fork();
+		other.fork();
+
+		waiter.join();
+		holder.join();
+		other.join();
+	}
+
+	public static void runTest() {
+		if (!(ThreadedKernel.scheduler instanceof EDFScheduler))
+			return;
+
+		System.out.println("**** EDFScheduler test START ****");
+		testOrder();
+		testPeriodic();
+		testLockRequeue();
+		System.out.println("**** EDFScheduler test FINISHED ****");
+	}
+}
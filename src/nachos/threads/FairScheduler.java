@@ -0,0 +1,363 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Iterator;
+import java.util.TreeSet;
+
+/**
+ * A fair-share scheduler that tracks the virtual runtime of each thread, in
+ * the style of the Linux completely fair scheduler.
+ *
+ * <p>
+ * Every thread has a weight, determined by its priority in the same range as
+ * a <tt>PriorityScheduler</tt>'s: each step up in priority is worth 25% more
+ * CPU time. Each time a thread runs, its <i>virtual runtime</i> grows by the
+ * ticks it ran, scaled down by its weight relative to that of a thread of the
+ * default priority. The thread dequeued is always the one with the smallest
+ * virtual runtime, so every thread gets a share of the CPU in proportion to
+ * its weight.
+ *
+ * <p>
+ * Threads are preempted on timer interrupts. Every ready thread should run
+ * once within the <i>target latency</i>, so the current thread's slice is the
+ * target latency divided among the threads that are ready, in proportion to
+ * their weights, but is never less than the minimum granularity. Both are
+ * given in ticks, by <tt>FairScheduler.targetLatency</tt> (4000 by default)
+ * and <tt>FairScheduler.minGranularity</tt> (500 by default, one timer
+ * period). A thread that wakes up or is new starts no more than half the
+ * target latency behind the threads that have been running, so it runs soon,
+ * but cannot make up for all the time it spent asleep. If such a thread is
+ * further behind than the current thread by more than the minimum
+ * granularity, the current thread is preempted at the next timer interrupt.
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class FairScheduler extends Scheduler {
+    /**
+     * Allocate a new fair-share scheduler.
+     */
+    public FairScheduler() {
+	targetLatency = Config.getInteger("FairScheduler.targetLatency", 4000);
+	minGranularity = Config.getInteger("FairScheduler.minGranularity", 500);
+
+	Lib.assertTrue(minGranularity > 0 && targetLatency >= minGranularity);
+    }
+
+    /**
+     * Allocate a new thread queue that orders threads by virtual runtime. The
+     * <i>transferPriority</i> argument is ignored.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FairQueue();
+    }
+
+    public int getPriority(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	return getThreadState(thread).priority;
+    }
+
+    public int getEffectivePriority(KThread thread) {
+	return getPriority(thread);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= PriorityScheduler.priorityMinimum &&
+		   priority <= PriorityScheduler.priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority < PriorityScheduler.priorityMaximum);
+	if (changed)
+	    setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	boolean changed = (priority > PriorityScheduler.priorityMinimum);
+	if (changed)
+	    setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return changed;
+    }
+
+    /**
+     * Return the virtual runtime of the specified thread. Must be called with
+     * interrupts disabled.
+     *
+     * @param	thread	the thread whose virtual runtime to return.
+     * @return	the thread's virtual runtime, in ticks of a thread of the
+     *		default priority.
+     */
+    public long getVirtualRuntime(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	if (thread == KThread.currentThread())
+	    state.charge(Machine.timer().getTime());
+
+	return state.vruntime;
+    }
+
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+
+	ThreadState current = getThreadState(KThread.currentThread());
+	current.charge(time);
+
+	// the queue the current thread was dequeued from is the ready queue
+	FairQueue readyQueue = current.dequeuedFrom;
+	if (readyQueue == null || readyQueue.waiting.isEmpty())
+	    return;
+
+	long slice = targetLatency * current.weight /
+	    (readyQueue.totalWeight + current.weight);
+	slice = Math.max(slice, minGranularity);
+
+	ThreadState first = readyQueue.waiting.first();
+	if (time - current.dispatchTime >= slice ||
+	    first.vruntime + minGranularity < current.vruntime) {
+	    Lib.debug(dbgFair, "Preempting " + current.thread);
+	    KThread.yield();
+	}
+    }
+
+    public void switchThreads(KThread previous, KThread next) {
+	long time = Machine.timer().getTime();
+
+	getThreadState(previous).charge(time);
+
+	ThreadState state = getThreadState(next);
+	state.lastCharge = time;
+	state.dispatchTime = time;
+
+	// the idle thread never waits on the ready queue, and doesn't count
+	if (state.dequeuedFrom != null)
+	    minVruntime = Math.max(minVruntime, state.vruntime);
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps its waiting threads in a balanced
+     * tree ordered by virtual runtime, and then by when they started
+     * waiting.
+     */
+    protected class FairQueue extends ThreadQueue {
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+
+	    if (thread == KThread.currentThread()) {
+		state.charge(Machine.timer().getTime());
+	    }
+	    else {
+		// a thread waking up or starting gets a bounded head start
+		long floor = minVruntime - targetLatency/2;
+		state.vruntime = Math.max(state.vruntime, floor);
+	    }
+
+	    enqueue(state);
+	}
+
+	public void requeue(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(thread != KThread.currentThread());
+
+	    enqueue(getThreadState(thread));
+	}
+
+	private void enqueue(ThreadState state) {
+	    state.waitTime = numWaits++;
+	    state.waitQueue = this;
+	    state.queuedWeight = state.weight;
+	    totalWeight += state.weight;
+	    waiting.add(state);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    if (waiting.isEmpty())
+		return null;
+
+	    ThreadState state = waiting.pollFirst();
+	    totalWeight -= state.queuedWeight;
+	    state.waitQueue = null;
+	    state.dequeuedFrom = this;
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    waiting.remove(state);
+	    totalWeight -= state.queuedWeight;
+	    state.waitQueue = null;
+
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(waiting.isEmpty());
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (Iterator<ThreadState> i=waiting.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		System.out.print(state.thread + " (" + state.vruntime + ") ");
+	    }
+	}
+
+	private TreeSet<ThreadState> waiting = new TreeSet<ThreadState>();
+	/** The total weight of the waiting threads. */
+	private long totalWeight = 0;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState implements Comparable<ThreadState> {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+
+	    lastCharge = dispatchTime = Machine.timer().getTime();
+	    setPriority(PriorityScheduler.priorityDefault);
+	}
+
+	/**
+	 * Set the priority of the associated thread, and its weight with it.
+	 *
+	 * @param	priority	the new priority.
+	 */
+	public void setPriority(int priority) {
+	    this.priority = priority;
+	    weight = weights[priority - PriorityScheduler.priorityMinimum];
+
+	    if (waitQueue != null) {
+		waitQueue.totalWeight += weight - queuedWeight;
+		queuedWeight = weight;
+	    }
+	}
+
+	/**
+	 * Add the time since the associated thread was last charged to its
+	 * virtual runtime, scaled by its weight.
+	 *
+	 * @param	time	the current time.
+	 */
+	void charge(long time) {
+	    vruntime += (time - lastCharge) * defaultWeight / weight;
+	    lastCharge = time;
+	}
+
+	public int compareTo(ThreadState other) {
+	    if (vruntime != other.vruntime)
+		return (vruntime < other.vruntime) ? -1 : 1;
+	    else if (waitTime != other.waitTime)
+		return (waitTime < other.waitTime) ? -1 : 1;
+	    else
+		return 0;
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The priority of the associated thread. */
+	protected int priority;
+	/** The weight that goes with the priority. */
+	protected long weight;
+	/** The virtual runtime of the associated thread. */
+	protected long vruntime = 0;
+
+	/** When the associated thread was last charged for running. */
+	long lastCharge;
+	/** When the associated thread last got the CPU. */
+	long dispatchTime;
+
+	/** The queue the associated thread is waiting on, if any. */
+	FairQueue waitQueue = null;
+	/** The weight counted for the associated thread by its queue. */
+	long queuedWeight;
+	/** When the associated thread started waiting on a queue. */
+	long waitTime;
+	/** The queue the associated thread was last dequeued from. */
+	FairQueue dequeuedFrom = null;
+    }
+
+    private long targetLatency;
+    private long minGranularity;
+
+    /**
+     * The virtual runtime of the thread most recently given the CPU, or of
+     * any before it if that was higher. Threads that wake up are placed
+     * relative to it.
+     */
+    private long minVruntime = 0;
+
+    private long numWaits = 0;
+
+    /** The weight of a thread of the default priority. */
+    private static final long defaultWeight = 1024;
+
+    /**
+     * The weight of each priority, from the minimum up. Each step is 25%
+     * more than the one below.
+     */
+    private static final long[] weights = { 819, 1024, 1280, 1600, 2000, 2500,
+					    3125, 3906 };
+
+    private static final char dbgFair = 'f';
+}
@@ -0,0 +1,117 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the FairScheduler class. Only runs when the kernel was
+ * configured to use a <tt>FairScheduler</tt>.
+ */
+public class FairSchedulerTest {
+	static char debugFlag = 'f';
+
+	/**
+	 * Burn the specified number of ticks without yielding. Every time
+	 * interrupts are enabled again, the clock advances, and a timer
+	 * interrupt may preempt us.
+	 */
+	private static void spin(long ticks) {
+		long end = Machine.timer().getTime() + ticks;
+		while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	/**
+	 * Threads that never yield share the CPU in proportion to the weights of
+	 * their priorities.
+	 */
+	private static void testShare() {
+		final int[] priorities = { 1, 4 };
+		final long[] progress = new long[priorities.length];
+		final boolean[] done = { false };
+		KThread[] hogs = new KThread[priorities.length];
+
+		for (int i = 0; i < hogs.length; i++) {
+			final int which = i;
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0]) {
+						spin(10);
+						progress[which]++;
+					}
+				}
+			}).setName("hog" + i);
+
+			boolean intStatus = Machine.interrupt().disable();
+			ThreadedKernel.scheduler.setPriority(hogs[i], priorities[i]);
+			Machine.interrupt().restore(intStatus);
+
+			hogs[i].fork();
+		}
+
+		ThreadedKernel.alarm.waitUntil(100000);
+		done[0] = true;
+
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		// weights 1024 and 2000
+		double ratio = (double) progress[1] / progress[0];
+		Lib.debug(debugFlag, "Progress " + progress[0] + " and " +
+			  progress[1] + ", ratio " + ratio);
+		Lib.assertTrue(ratio > 1.75 && ratio < 2.15);
+	}
+
+	/**
+	 * A thread that keeps sleeping gets the CPU within the target latency of
+	 * waking up, however many CPU-bound threads there are.
+	 */
+	private static void testLatency() {
+		final boolean[] done = { false };
+		KThread[] hogs = new KThread[16];
+
+		for (int i = 0; i < hogs.length; i++) {
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					while (!done[0])
+						spin(100);
+				}
+			}).setName("background" + i);
+			hogs[i].fork();
+		}
+
+		KThread interactive = new KThread(new Runnable() {
+			public void run() {
+				long worst = 0;
+				for (int i = 0; i < 20; i++) {
+					long due = Machine.timer().getTime() + 3000;
+					ThreadedKernel.alarm.waitUntil(3000);
+					worst = Math.max(worst, Machine.timer().getTime() - due);
+					spin(50);
+				}
+				done[0] = true;
+
+				long target = Config.getInteger("FairScheduler.targetLatency",
+								4000);
+				Lib.debug(debugFlag, "Worst wakeup latency: " + worst);
+				Lib.assertTrue(worst < target + Stats.TimerTicks);
+			}
+		}).setName("interactive");
+		interactive.fork();
+
+		interactive.join();
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+	}
+
+	public static void runTest() {
+		if (!(ThreadedKernel.scheduler instanceof FairScheduler))
+			return;
+
+		System.out.println("**** FairScheduler test START ****");
+		testShare();
+		testLatency();
+		System.out.println("**** FairScheduler test FINISHED ****");
+	}
+}
@@ -113,6 +113,33 @@ public class KThread {
 		return name;
 	}
 
+	/**
+	 * Declare this thread periodic. From now on, it releases a job every
+	 * <i>period</i> ticks, each of which should be done within
+	 * <i>deadline</i> ticks of its release. The first job is released now,
+	 * and the thread ends each job by calling
+	 * <tt>Alarm.waitForNextPeriod()</tt>.
+	 *
+	 * @param	period		the ticks between releases.
+	 * @param	deadline	the ticks each job has to finish.
+	 * @return	this thread.
+	 *
+	 * @see	nachos.threads.Alarm#waitForNextPeriod
+	 */
+	public KThread setPeriod(long period, long deadline) {
+		Lib.assertTrue(period > 0 && deadline > 0);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		this.period = period;
+		this.relativeDeadline = deadline;
+		release = Machine.timer().getTime();
+		ThreadedKernel.scheduler.setDeadline(this, release + deadline);
+
+		Machine.interrupt().restore(intStatus);
+		return this;
+	}
+
 	/**
 	 * Get the full name of this thread. This includes its name along with its
 	 * numerical ID. This name is used for debugging purposes only.
@@ -359,6 +386,15 @@ public class KThread {
 
 		Machine.yield();
 
+		ThreadedKernel.scheduler.switchThreads(currentThread, this);
+
+		if (this == idleThread) {
+			// nothing can become ready before the next interrupt, so let the
+			// clock skip over the idle thread's spinning, once the scheduler
+			// is done charging the thread that gave up the CPU
+			Machine.interrupt().idle();
+		}
+
 		currentThread.saveState();
 
 		Lib.debug(dbgThread, "Switching from: " + currentThread.toString()
@@ -427,6 +463,15 @@ public class KThread {
 		new KThread(new PingTest(1)).setName("forked thread").fork();
 		KThreadTest.runTest();
 		Condition2Test.runTest();
+		TimedWaitTest.runTest();
+		ChannelTest.runTest();
+		SynchListTest.runTest();
+		PrioritySchedulerTest.runTest();
+		LotterySchedulerTest.runTest();
+		StrideSchedulerTest.runTest();
+		MLFQSchedulerTest.runTest();
+		FairSchedulerTest.runTest();
+		EDFSchedulerTest.runTest();
 
 	}
 
@@ -463,6 +508,18 @@ public class KThread {
 	private Semaphore joinMutex;
 	private int joiners;
 
+	/**
+	 * The period and relative deadline declared by <tt>setPeriod()</tt>, or
+	 * zero if this thread is not periodic, and the release time of its
+	 * current job.
+	 */
+	long period = 0;
+	long relativeDeadline = 0;
+	long release = 0;
+
+	/** The alarm's wakeup for this thread, reused every time it sleeps. */
+	Alarm.Timeout alarmTimeout = null;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
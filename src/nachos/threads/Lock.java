@@ -1,5 +1,7 @@
 package nachos.threads;
 
+import java.util.LinkedList;
+
 import nachos.machine.*;
 
 /**
@@ -50,6 +52,48 @@ public class Lock {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>acquire()</tt>, but give up if the lock is still busy after
+     * <i>timeout</i> ticks. A thread that gives up is taken off the wait
+     * queue by the timer interrupt, and stops donating priority to the lock
+     * holder.
+     *
+     * @param	timeout	the most ticks to wait, or zero not to wait at all.
+     * @return	<tt>true</tt> if the lock was acquired, <tt>false</tt> if the
+     *		wait timed out.
+     */
+    public boolean tryAcquire(long timeout) {
+	Lib.assertTrue(!isHeldByCurrentThread());
+
+	boolean intStatus = Machine.interrupt().disable();
+	final KThread thread = KThread.currentThread();
+
+	if (lockHolder == null) {
+	    waitQueue.acquire(thread);
+	    lockHolder = thread;
+	}
+	else if (timeout > 0) {
+	    waitQueue.waitForAccess(thread);
+	    Alarm.Timeout alarm =
+		ThreadedKernel.alarm.waitUntil(timeout, new Runnable() {
+			public void run() {
+			    // release() may have handed us the lock already
+			    if (waitQueue.remove(thread))
+				thread.ready();
+			}
+		    });
+
+	    KThread.sleep();
+
+	    alarm.cancel();
+	}
+
+	boolean acquired = (lockHolder == thread);
+
+	Machine.interrupt().restore(intStatus);
+	return acquired;
+    }
+
     /**
      * Atomically release this lock, allowing other threads to acquire it.
      */
@@ -58,12 +102,45 @@ public class Lock {
 
 	boolean intStatus = Machine.interrupt().disable();
 
-	if ((lockHolder = waitQueue.nextThread()) != null)
+	if ((lockHolder = waitQueue.nextThread()) != null) {
 	    lockHolder.ready();
+
+	    // still busy, so the woken threads wait for it like anyone else
+	    for (KThread thread : wokenThreads)
+		waitQueue.requeue(thread);
+	}
+	else {
+	    for (KThread thread : wokenThreads)
+		thread.ready();
+	}
+	wokenThreads.clear();
 	
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Leave a thread that has been woken on a condition variable asleep
+     * until the current thread releases this lock, instead of having it run
+     * only to find the lock still busy. If the lock is handed to another
+     * waiter then, the thread joins the wait queue and is woken when it is
+     * handed the lock in turn; otherwise it is made ready, and is likely to
+     * find the lock free. The current thread must hold this lock, and
+     * interrupts must be disabled.
+     *
+     * <p>
+     * The thread is not handed the lock directly when it is free, since it
+     * is not running: the releaser, or any other thread that gets there
+     * first, would then have to wait for it.
+     *
+     * @param	thread	the thread that was woken.
+     */
+    void requeue(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	Lib.assertTrue(isHeldByCurrentThread());
+
+	wokenThreads.add(thread);
+    }
+
     /**
      * Test if the current thread holds this lock.
      *
@@ -75,4 +152,6 @@ public class Lock {
 
     private KThread lockHolder = null;
     private ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+    /** Threads woken on a condition variable while this lock is held. */
+    private LinkedList<KThread> wokenThreads = new LinkedList<KThread>();
 }
@@ -2,9 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.Arrays;
 
 /**
  * A scheduler that chooses threads using a lottery.
@@ -25,6 +23,13 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking
  * the maximum).
+ *
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree
+ * (binary indexed tree), so holding a lottery and adding, removing or
+ * changing the tickets of a waiting thread all take logarithmic time. The
+ * winning ticket is drawn with <tt>Lib.random()</tt>, so a run can be
+ * reproduced with the same random seed.
  */
 public class LotteryScheduler extends PriorityScheduler {
     /**
@@ -42,7 +47,234 @@ public class LotteryScheduler extends PriorityScheduler {
      * @return	a new lottery thread queue.
      */
     public ThreadQueue newThreadQueue(boolean transferPriority) {
-	// implement me
-	return null;
+	return new LotteryQueue(transferPriority);
+    }
+
+    public void setPriority(KThread thread, int priority) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	Lib.assertTrue(priority >= priorityMinimum &&
+		   priority <= priorityMaximum);
+
+	getThreadState(thread).setPriority(priority);
+    }
+
+    public boolean increasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMaximum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority+1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    public boolean decreasePriority() {
+	boolean intStatus = Machine.interrupt().disable();
+
+	KThread thread = KThread.currentThread();
+
+	int priority = getPriority(thread);
+	if (priority == priorityMinimum) {
+	    Machine.interrupt().restore(intStatus);
+	    return false;
+	}
+
+	setPriority(thread, priority-1);
+
+	Machine.interrupt().restore(intStatus);
+	return true;
+    }
+
+    /**
+     * The default number of tickets for a new thread.
+     */
+    public static final int priorityDefault = 1;
+    /**
+     * The minimum number of tickets that a thread can have.
+     */
+    public static final int priorityMinimum = 1;
+    /**
+     * The maximum number of tickets that a thread can have, counting the
+     * tickets transferred to it.
+     */
+    public static final int priorityMaximum = Integer.MAX_VALUE;
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new LotteryThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that holds a lottery among its waiting threads.
+     */
+    protected class LotteryQueue extends PriorityQueue {
+	LotteryQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	/**
+	 * Hold a lottery among the waiting threads. Each call draws a new
+	 * winner.
+	 *
+	 * @return	the winner, or <tt>null</tt> if no threads are waiting.
+	 */
+	protected ThreadState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    long winner;
+	    if (totalTickets <= Integer.MAX_VALUE)
+		winner = Lib.random((int) totalTickets);
+	    else
+		winner = (long) (Lib.random() * totalTickets);
+
+	    // find the smallest slot whose prefix sum exceeds the winner
+	    int slot = 0;
+	    for (int step=Integer.highestOneBit(capacity); step>0; step/=2) {
+		int next = slot + step;
+		if (next <= capacity && tree[next] <= winner) {
+		    slot = next;
+		    winner -= tree[next];
+		}
+	    }
+
+	    return waiting[slot];
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads, or
+	 * <tt>priorityMaximum</tt> if there are more than that.
+	 *
+	 * @return	the number of tickets donated by the waiting threads.
+	 */
+	protected int getDonatedPriority() {
+	    return (int) Math.min(totalTickets, priorityMaximum);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int slot=0; slot<capacity; slot++) {
+		if (waiting[slot] != null)
+		    System.out.print(waiting[slot].thread + " ");
+	    }
+	}
+
+	void insert(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+
+	    if (numFreeSlots == 0)
+		grow();
+
+	    int slot = freeSlots[--numFreeSlots];
+	    numWaiting++;
+
+	    waiting[slot] = state;
+	    lotteryState.slot = slot;
+	    lotteryState.tickets = state.effectivePriority;
+
+	    add(slot, lotteryState.tickets);
+	}
+
+	void remove(ThreadState state) {
+	    LotteryThreadState lotteryState = (LotteryThreadState) state;
+	    int slot = lotteryState.slot;
+
+	    add(slot, -lotteryState.tickets);
+
+	    waiting[slot] = null;
+	    numWaiting--;
+	    freeSlots[numFreeSlots++] = slot;
+	}
+
+	/**
+	 * Add the specified number of tickets to the specified slot.
+	 */
+	private void add(int slot, long tickets) {
+	    totalTickets += tickets;
+
+	    for (int i=slot+1; i<=capacity; i+=i&-i)
+		tree[i] += tickets;
+	}
+
+	/**
+	 * Double the number of slots, and rebuild the tree in linear time.
+	 * Every slot is in use when this is called.
+	 */
+	private void grow() {
+	    int oldCapacity = capacity;
+	    capacity *= 2;
+
+	    waiting = Arrays.copyOf(waiting, capacity);
+
+	    // every slot is in use, so the new ones are the only free ones
+	    freeSlots = Arrays.copyOf(freeSlots, capacity);
+	    for (int i=capacity-1; i>=oldCapacity; i--)
+		freeSlots[numFreeSlots++] = i;
+
+	    tree = new long[capacity+1];
+	    for (int i=1; i<=capacity; i++) {
+		if (waiting[i-1] != null)
+		    tree[i] += ((LotteryThreadState) waiting[i-1]).tickets;
+
+		int parent = i + (i&-i);
+		if (parent <= capacity)
+		    tree[parent] += tree[i];
+	    }
+	}
+
+	/**
+	 * The waiting threads, indexed by slot, and the Fenwick tree over the
+	 * number of tickets in each slot. <tt>tree[i]</tt> holds the sum of
+	 * slots <tt>i - (i&amp;-i)</tt> through <tt>i - 1</tt>.
+	 */
+	private int capacity = initialCapacity;
+	private ThreadState[] waiting = new ThreadState[initialCapacity];
+	private long[] tree = new long[initialCapacity+1];
+	private long totalTickets = 0;
+
+	private int numWaiting = 0;
+
+	/** A stack of the unused slots, lowest on top. */
+	private int[] freeSlots = initialFreeSlots();
+	private int numFreeSlots = initialCapacity;
+    }
+
+    private static int[] initialFreeSlots() {
+	int[] freeSlots = new int[initialCapacity];
+	for (int i=0; i<initialCapacity; i++)
+	    freeSlots[i] = initialCapacity-1 - i;
+	return freeSlots;
+    }
+
+    /**
+     * The scheduling state of a thread in a lottery scheduler. Tickets
+     * transferred to a thread add to its own.
+     */
+    protected class LotteryThreadState extends ThreadState {
+	public LotteryThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	protected int addDonation(int effective, int donated) {
+	    return (int) Math.min((long) effective + donated, priorityMaximum);
+	}
+
+	/** The slot of the associated thread in its queue's tree. */
+	int slot;
+	/** The number of tickets the queue's tree holds for this thread. */
+	long tickets;
     }
+
+    private static final int initialCapacity = 4;
 }
@@ -0,0 +1,141 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the LotteryScheduler class, with a benchmark of lotteries
+ * among many waiting threads. Only runs when the kernel was configured to
+ * use a <tt>LotteryScheduler</tt>.
+ */
+public class LotterySchedulerTest {
+	static char debugFlag = 'P';
+
+	/**
+	 * Tickets transferred through queues add up along a chain of holders,
+	 * and are taken back when a waiter leaves or its tickets change.
+	 */
+	private static void testTransfer() {
+		Scheduler s = ThreadedKernel.scheduler;
+		ThreadQueue inner = s.newThreadQueue(true);
+		ThreadQueue outer = s.newThreadQueue(true);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// holder has 2 tickets, and waits on outer, held by top with 3
+		KThread top = new KThread().setName("top");
+		KThread holder = new KThread().setName("holder");
+		s.setPriority(top, 3);
+		s.setPriority(holder, 2);
+		outer.acquire(top);
+		inner.acquire(holder);
+		outer.waitForAccess(holder);
+
+		KThread[] waiters = new KThread[10];
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread().setName("waiter" + i);
+			s.setPriority(waiters[i], i+1);
+			inner.waitForAccess(waiters[i]);
+		}
+
+		// 2 + (1 + 2 + ... + 10)
+		Lib.assertTrue(s.getEffectivePriority(holder) == 57);
+		Lib.assertTrue(s.getEffectivePriority(top) == 60);
+
+		s.setPriority(waiters[0], 100);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 156);
+		Lib.assertTrue(s.getEffectivePriority(top) == 159);
+
+		// whoever wins inner gets the tickets of all the others instead
+		KThread winner = inner.nextThread();
+		Lib.assertTrue(s.getEffectivePriority(holder) == 2);
+		Lib.assertTrue(s.getEffectivePriority(winner) == 154);
+		Lib.assertTrue(s.getEffectivePriority(top) == 5);
+
+		s.setPriority(top, LotteryScheduler.priorityMaximum);
+		Lib.assertTrue(s.getEffectivePriority(top) ==
+			       LotteryScheduler.priorityMaximum);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Threads win in proportion to their tickets.
+	 */
+	private static void testFairness() {
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+		int[] tickets = { 1, 2, 7, 10 };
+		KThread[] threads = new KThread[tickets.length];
+		int[] wins = new int[tickets.length];
+		int draws = 20000;
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("fair" + i);
+			ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int d = 0; d < draws; d++) {
+			KThread thread = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (threads[i] == thread)
+					wins[i]++;
+			}
+			queue.waitForAccess(thread);
+		}
+
+		for (int i = 0; i < threads.length; i++) {
+			double expected = draws * tickets[i] / 20.0;
+			Lib.debug(debugFlag, threads[i] + " won " + wins[i] +
+				  " times, expected " + expected);
+			Lib.assertTrue(Math.abs(wins[i] - expected) < draws * 0.02);
+		}
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Time lotteries among the specified number of waiting threads, each of
+	 * which goes back into the queue as soon as it wins.
+	 */
+	private static void benchmark(int numWaiters, int draws) {
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < numWaiters; i++) {
+			KThread thread = new KThread().setName("bench" + i);
+			ThreadedKernel.scheduler.setPriority(thread,
+							     1 + Lib.random(100));
+			queue.waitForAccess(thread);
+		}
+
+		// warm up the JIT compiler first
+		for (int d = 0; d < draws / 10; d++)
+			queue.waitForAccess(queue.nextThread());
+
+		long start = System.nanoTime();
+		for (int d = 0; d < draws; d++)
+			queue.waitForAccess(queue.nextThread());
+		long elapsed = System.nanoTime() - start;
+
+		Machine.interrupt().restore(intStatus);
+
+		System.out.println(draws + " lotteries among " + numWaiters +
+				   " threads in " + (elapsed / 1000000) + " ms: " +
+				   (elapsed / draws) + " ns/lottery");
+	}
+
+	public static void runTest() {
+		if (ThreadedKernel.scheduler.getClass() != LotteryScheduler.class)
+			return;
+
+		System.out.println("**** LotteryScheduler test START ****");
+		testTransfer();
+		testFairness();
+		benchmark(1000, 200000);
+		benchmark(10000, 200000);
+		System.out.println("**** LotteryScheduler test FINISHED ****");
+	}
+}
@@ -0,0 +1,345 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A multilevel feedback queue scheduler, which preempts threads on timer
+ * interrupts.
+ *
+ * <p>
+ * Threads are kept at one of several levels, level 0 being the highest, and
+ * the next thread to be dequeued is the one that has been waiting longest at
+ * the highest level with any waiting threads. Every level has a quantum,
+ * given in ticks by <tt>MLFQScheduler.quanta</tt>, a comma-separated list
+ * with one entry per level (<tt>1000,2000,4000</tt> by default). New threads
+ * start at level 0.
+ *
+ * <p>
+ * A thread is charged for the time it runs, whether it uses it all at once
+ * or in pieces. Once it has used up the quantum of its level, it is preempted
+ * at the next timer interrupt and moves down a level. A thread that keeps
+ * blocking, such as a shell waiting for console input, uses little of its
+ * quantum and stays at a high level. When a thread becomes ready at a higher
+ * level than the current thread's, the current thread is preempted at the
+ * next timer interrupt, so such a thread waits at most one timer period for
+ * the CPU.
+ *
+ * <p>
+ * To keep threads at low levels from starving, every thread is moved back to
+ * level 0 every <tt>MLFQScheduler.boostInterval</tt> ticks (50000 by
+ * default).
+ *
+ * <p>
+ * This scheduler does not transfer priority.
+ */
+public class MLFQScheduler extends Scheduler {
+    /**
+     * Allocate a new multilevel feedback queue scheduler.
+     */
+    public MLFQScheduler() {
+	String[] values =
+	    Config.getString("MLFQScheduler.quanta", "1000,2000,4000").split(",");
+
+	Lib.assertTrue(values.length > 0 && values.length <= maxLevels);
+
+	quanta = new long[values.length];
+	for (int i=0; i<values.length; i++) {
+	    quanta[i] = Long.parseLong(values[i].trim());
+	    Lib.assertTrue(quanta[i] > 0);
+	}
+
+	boostInterval = Config.getInteger("MLFQScheduler.boostInterval", 50000);
+	Lib.assertTrue(boostInterval > 0);
+    }
+
+    /**
+     * Allocate a new thread queue that orders threads by level. The
+     * <i>transferPriority</i> argument is ignored.
+     *
+     * @param	transferPriority	ignored.
+     * @return	a new thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new FeedbackQueue();
+    }
+
+    /**
+     * Return the level of the specified thread, 0 being the highest. Must be
+     * called with interrupts disabled.
+     *
+     * @param	thread	the thread whose level to return.
+     * @return	the thread's level.
+     */
+    public int getLevel(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	ThreadState state = getThreadState(thread);
+	refresh(state);
+	return state.level;
+    }
+
+    public void timerInterrupt() {
+	Lib.assertTrue(Machine.interrupt().disabled());
+
+	long time = Machine.timer().getTime();
+	if (time - lastBoost >= boostInterval) {
+	    Lib.debug(dbgMLFQ, "Boosting all threads at time " + time);
+	    lastBoost = time;
+	    generation++;
+	}
+
+	ThreadState current = getThreadState(KThread.currentThread());
+	refresh(current);
+	charge(current, time);
+
+	if (current.used >= quanta[current.level] || preemptPending) {
+	    Lib.debug(dbgMLFQ, "Preempting " + current.thread);
+	    preemptPending = false;
+	    KThread.yield();
+	}
+    }
+
+    public void switchThreads(KThread previous, KThread next) {
+	long time = Machine.timer().getTime();
+
+	charge(getThreadState(previous), time);
+	getThreadState(next).runningSince = time;
+
+	// whatever was ready at a higher level is what gets to run now
+	preemptPending = false;
+    }
+
+    /**
+     * Return the scheduling state of the specified thread.
+     *
+     * @param	thread	the thread whose scheduling state to return.
+     * @return	the scheduling state of the specified thread.
+     */
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new ThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * Charge the specified thread for the time it has run since it was last
+     * charged.
+     */
+    private void charge(ThreadState state, long time) {
+	state.used += time - state.runningSince;
+	state.runningSince = time;
+    }
+
+    /**
+     * Move a thread back to level 0 if there has been a boost since it was
+     * last looked at.
+     */
+    private void refresh(ThreadState state) {
+	if (state.generation != generation) {
+	    state.generation = generation;
+	    state.level = 0;
+	    state.used = 0;
+	}
+    }
+
+    /**
+     * A <tt>ThreadQueue</tt> that keeps a FIFO of waiting threads for every
+     * level, and a bitmap of the levels that have any.
+     */
+    protected class FeedbackQueue extends ThreadQueue {
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	FeedbackQueue() {
+	    levels = new LinkedList[quanta.length];
+	    for (int i=0; i<levels.length; i++)
+		levels[i] = new LinkedList<ThreadState>();
+	}
+
+	public void waitForAccess(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    refreshQueue();
+
+	    ThreadState state = getThreadState(thread);
+	    refresh(state);
+
+	    if (thread == KThread.currentThread()) {
+		// the thread is giving up the CPU, so settle its account
+		charge(state, Machine.timer().getTime());
+		if (state.used >= quanta[state.level]) {
+		    state.used = 0;
+		    if (state.level < quanta.length-1)
+			state.level++;
+
+		    Lib.debug(dbgMLFQ, "Demoting " + thread + " to level " +
+			      state.level);
+		}
+	    }
+	    else {
+		ThreadState current = getThreadState(KThread.currentThread());
+		refresh(current);
+		if (state.level < current.level)
+		    preemptPending = true;
+	    }
+
+	    enqueue(state);
+	}
+
+	public void requeue(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+	    Lib.assertTrue(thread != KThread.currentThread());
+
+	    refreshQueue();
+
+	    ThreadState state = getThreadState(thread);
+	    refresh(state);
+	    enqueue(state);
+	}
+
+	private void enqueue(ThreadState state) {
+	    state.waitTime = numWaits++;
+	    levels[state.level].add(state);
+	    occupied |= 1 << state.level;
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    refreshQueue();
+
+	    if (occupied == 0)
+		return null;
+
+	    int level = Integer.numberOfTrailingZeros(occupied);
+	    ThreadState state = levels[level].removeFirst();
+	    if (levels[level].isEmpty())
+		occupied &= ~(1 << level);
+
+	    return state.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    refreshQueue();
+
+	    ThreadState state = getThreadState(thread);
+	    if (!levels[state.level].remove(state))
+		return false;
+
+	    if (levels[state.level].isEmpty())
+		occupied &= ~(1 << state.level);
+
+	    return true;
+	}
+
+	public void acquire(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    Lib.assertTrue(occupied == 0);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<levels.length; i++) {
+		for (Iterator<ThreadState> j=levels[i].iterator(); j.hasNext(); )
+		    System.out.print(j.next().thread + " ");
+	    }
+	}
+
+	/**
+	 * If there has been a boost since this queue was last used, move all
+	 * its waiting threads to level 0, keeping them in the order they
+	 * started waiting.
+	 */
+	private void refreshQueue() {
+	    if (queueGeneration == generation)
+		return;
+	    queueGeneration = generation;
+
+	    if ((occupied & ~1) == 0)
+		return;
+
+	    ArrayList<ThreadState> waiting = new ArrayList<ThreadState>();
+	    for (int i=0; i<levels.length; i++) {
+		waiting.addAll(levels[i]);
+		levels[i].clear();
+	    }
+
+	    Collections.sort(waiting, new Comparator<ThreadState>() {
+		    public int compare(ThreadState a, ThreadState b) {
+			return Long.compare(a.waitTime, b.waitTime);
+		    }
+		});
+
+	    for (Iterator<ThreadState> i=waiting.iterator(); i.hasNext(); ) {
+		ThreadState state = i.next();
+		refresh(state);
+		levels[0].add(state);
+	    }
+	    occupied = 1;
+	}
+
+	private LinkedList<ThreadState>[] levels;
+	private int occupied = 0;
+	private long queueGeneration = generation;
+    }
+
+    /**
+     * The scheduling state of a thread.
+     *
+     * @see	nachos.threads.KThread#schedulingState
+     */
+    protected class ThreadState {
+	/**
+	 * Allocate a new <tt>ThreadState</tt> object and associate it with the
+	 * specified thread.
+	 *
+	 * @param	thread	the thread this state belongs to.
+	 */
+	public ThreadState(KThread thread) {
+	    this.thread = thread;
+	    runningSince = Machine.timer().getTime();
+	}
+
+	/** The thread with which this object is associated. */
+	protected KThread thread;
+	/** The level of the associated thread. */
+	protected int level = 0;
+	/** The ticks the associated thread has run for at its level. */
+	protected long used = 0;
+
+	/** When the associated thread was last charged for running. */
+	long runningSince;
+	/** When the associated thread started waiting on a queue. */
+	long waitTime;
+	/** The boost the associated thread was last refreshed for. */
+	long generation = MLFQScheduler.this.generation;
+    }
+
+    private long[] quanta;
+    private long boostInterval;
+
+    private long lastBoost = 0;
+    private long generation = 0;
+
+    /**
+     * Set when a thread becomes ready at a higher level than the current
+     * thread's, so that the current thread is preempted at the next timer
+     * interrupt.
+     */
+    private boolean preemptPending = false;
+
+    private long numWaits = 0;
+
+    private static final int maxLevels = 32;
+
+    private static final char dbgMLFQ = 'q';
+}
@@ -0,0 +1,180 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the MLFQScheduler class. Only runs when the kernel was
+ * configured to use an <tt>MLFQScheduler</tt>.
+ */
+public class MLFQSchedulerTest {
+	static char debugFlag = 'q';
+
+	/**
+	 * Burn the specified number of ticks without yielding. Every time
+	 * interrupts are enabled again, the clock advances, and a timer
+	 * interrupt may preempt us.
+	 */
+	private static void spin(long ticks) {
+		long end = Machine.timer().getTime() + ticks;
+		while (Machine.timer().getTime() < end) {
+			Machine.interrupt().disable();
+			Machine.interrupt().enable();
+		}
+	}
+
+	private static int getLevel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+		int level = ((MLFQScheduler) ThreadedKernel.scheduler).getLevel(thread);
+		Machine.interrupt().restore(intStatus);
+		return level;
+	}
+
+	/**
+	 * Threads that never yield still share the CPU, and sink to a lower
+	 * level.
+	 */
+	private static void testPreemption() {
+		final long[] progress = new long[2];
+		final long[] otherAtFinish = new long[2];
+		final KThread[] hogs = new KThread[2];
+
+		for (int i = 0; i < hogs.length; i++) {
+			final int which = i;
+			hogs[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 40; j++) {
+						spin(500);
+						progress[which]++;
+					}
+					otherAtFinish[which] = progress[1-which];
+					Lib.assertTrue(getLevel(KThread.currentThread()) > 0);
+				}
+			}).setName("hog" + i);
+			hogs[i].fork();
+		}
+
+		for (int i = 0; i < hogs.length; i++)
+			hogs[i].join();
+
+		Lib.debug(debugFlag, "Progress of the other hog when each finished: " +
+			  otherAtFinish[0] + ", " + otherAtFinish[1]);
+		Lib.assertTrue(otherAtFinish[0] > 10 && otherAtFinish[1] > 10);
+	}
+
+	/**
+	 * A thread that keeps sleeping stays above a CPU-bound thread, and gets
+	 * the CPU soon after it wakes up even though the CPU-bound thread never
+	 * yields.
+	 */
+	private static void testInteractive() {
+		final boolean[] done = { false };
+		final KThread[] hog = new KThread[1];
+
+		hog[0] = new KThread(new Runnable() {
+			public void run() {
+				while (!done[0])
+					spin(100);
+			}
+		}).setName("background");
+		hog[0].fork();
+
+		KThread interactive = new KThread(new Runnable() {
+			public void run() {
+				long worst = 0;
+				for (int i = 0; i < 20; i++) {
+					long due = Machine.timer().getTime() + 2000;
+					ThreadedKernel.alarm.waitUntil(2000);
+					worst = Math.max(worst, Machine.timer().getTime() - due);
+					spin(50);
+				}
+				done[0] = true;
+
+				Lib.debug(debugFlag, "Worst wakeup latency: " + worst);
+				Lib.assertTrue(worst < 2 * Stats.TimerTicks);
+				Lib.assertTrue(getLevel(KThread.currentThread()) <
+					       getLevel(hog[0]));
+			}
+		}).setName("interactive");
+		interactive.fork();
+
+		interactive.join();
+		hog[0].join();
+	}
+
+	/**
+	 * A thread woken from a condition variable while the lock goes to
+	 * another thread only waits for the lock again; it is not ready, so
+	 * even from a higher level it must not preempt the thread that released
+	 * the lock.
+	 */
+	private static void testLockRequeue() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+		final Semaphore held = new Semaphore(0);
+		final boolean[] go = { false };
+		final boolean[] waiting = { false };
+		final boolean[] otherRan = { false };
+
+		// the waiter stays at level 0, while the others use up a quantum
+		// and move down, so that the holder can run out the test without
+		// using up its new quantum
+		KThread waiter = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				waiting[0] = true;
+				while (!go[0])
+					condition.sleep();
+				lock.release();
+			}
+		}).setName("waiter");
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				while (getLevel(KThread.currentThread()) == 0)
+					spin(100);
+				lock.acquire();
+				held.V();
+				// let the other thread block on the lock
+				ThreadedKernel.alarm.waitUntil(1000);
+
+				Lib.assertTrue(waiting[0]);
+				go[0] = true;
+				condition.wake();
+				lock.release();
+
+				spin(1000);
+				Lib.assertTrue(!otherRan[0]);
+			}
+		}).setName("holder");
+
+		KThread other = new KThread(new Runnable() {
+			public void run() {
+				while (getLevel(KThread.currentThread()) == 0)
+					spin(100);
+				held.P();
+				lock.acquire();
+				otherRan[0] = true;
+				lock.release();
+			}
+		}).setName("other");
+
+		waiter.fork();
+		holder.fork();
+		other.fork();
+
+		waiter.join();
+		holder.join();
+		other.join();
+	}
+
+	public static void runTest() {
+		if (!(ThreadedKernel.scheduler instanceof MLFQScheduler))
+			return;
+
+		System.out.println("**** MLFQScheduler test START ****");
+		testPreemption();
+		testInteractive();
+		testLockRequeue();
+		System.out.println("**** MLFQScheduler test FINISHED ****");
+	}
+}
@@ -2,8 +2,7 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Iterator;
 
 /**
@@ -25,6 +24,14 @@ import java.util.Iterator;
  * <p>
  * A priority scheduler must partially solve the priority inversion problem; in
  * particular, priority must be donated through locks, and through joins.
+ *
+ * <p>
+ * Each queue keeps a FIFO of waiting threads for every priority level, and a
+ * bitmap of the levels that are occupied, so the next thread is found with a
+ * single bit scan. Every thread caches its effective priority. When the
+ * waiters or the holder of a queue that transfers priority change, the
+ * holder's effective priority is recomputed, and the change is passed along
+ * the chain of donation only as far as it makes a difference.
  */
 public class PriorityScheduler extends Scheduler {
     /**
@@ -142,8 +149,34 @@ public class PriorityScheduler extends Scheduler {
 
 	public KThread nextThread() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me
-	    return null;
+
+	    ThreadState next = pickNextThread();
+	    if (next == null) {
+		// nobody gets access, but the holder gives it up all the same
+		if (holder != null)
+		    holder.release(this);
+		return null;
+	    }
+
+	    remove(next);
+	    next.waitQueue = null;
+	    next.acquire(this);
+
+	    return next.thread;
+	}
+
+	public boolean remove(KThread thread) {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    ThreadState state = getThreadState(thread);
+	    if (state.waitQueue != this)
+		return false;
+
+	    remove(state);
+	    state.waitQueue = null;
+	    donationChanged();
+
+	    return true;
 	}
 
 	/**
@@ -154,13 +187,106 @@ public class PriorityScheduler extends Scheduler {
 	 *		return.
 	 */
 	protected ThreadState pickNextThread() {
-	    // implement me
-	    return null;
+	    if (occupied == 0)
+		return null;
+
+	    return heads[topLevel()];
 	}
-	
+
+	/**
+	 * Return the highest effective priority of any thread waiting on this
+	 * queue, or <tt>priorityMinimum</tt> if none are waiting.
+	 *
+	 * @return	the highest effective priority of the waiting threads.
+	 */
+	protected int getDonatedPriority() {
+	    if (occupied == 0)
+		return priorityMinimum;
+
+	    return priorityMinimum + topLevel();
+	}
+
+	private int topLevel() {
+	    return 31 - Integer.numberOfLeadingZeros(occupied);
+	}
+
 	public void print() {
 	    Lib.assertTrue(Machine.interrupt().disabled());
-	    // implement me (if you want)
+
+	    for (int level=numLevels-1; level>=0; level--) {
+		for (ThreadState state=heads[level]; state!=null;
+		     state=state.nextWaiter)
+		    System.out.print(state.thread + " ");
+	    }
+	}
+
+	/**
+	 * File the specified thread under the level of its effective priority.
+	 * Threads of the same priority stay ordered by when they started
+	 * waiting, so a thread whose priority changes while it waits is placed
+	 * among the others by that, scanning back from the most recent.
+	 */
+	void insert(ThreadState state) {
+	    int level = state.effectivePriority - priorityMinimum;
+	    state.level = level;
+
+	    ThreadState prev = tails[level];
+	    while (prev != null && prev.waitTime > state.waitTime)
+		prev = prev.prevWaiter;
+
+	    ThreadState next = (prev != null) ? prev.nextWaiter : heads[level];
+
+	    state.prevWaiter = prev;
+	    state.nextWaiter = next;
+
+	    if (prev != null)
+		prev.nextWaiter = state;
+	    else
+		heads[level] = state;
+
+	    if (next != null)
+		next.prevWaiter = state;
+	    else
+		tails[level] = state;
+
+	    occupied |= 1 << level;
+	}
+
+	void remove(ThreadState state) {
+	    int level = state.level;
+
+	    if (state.prevWaiter != null)
+		state.prevWaiter.nextWaiter = state.nextWaiter;
+	    else
+		heads[level] = state.nextWaiter;
+
+	    if (state.nextWaiter != null)
+		state.nextWaiter.prevWaiter = state.prevWaiter;
+	    else
+		tails[level] = state.prevWaiter;
+
+	    state.prevWaiter = state.nextWaiter = null;
+
+	    if (heads[level] == null)
+		occupied &= ~(1 << level);
+	}
+
+	/**
+	 * Move the specified waiting thread to where its new effective priority
+	 * belongs.
+	 */
+	void update(ThreadState state) {
+	    remove(state);
+	    insert(state);
+	}
+
+	/**
+	 * Tell the holder of this queue, if the queue transfers priority, that
+	 * the priorities of the waiting threads may have changed.
+	 */
+	void donationChanged() {
+	    if (transferPriority && holder != null)
+		holder.updateEffectivePriority();
 	}
 
 	/**
@@ -168,6 +294,18 @@ public class PriorityScheduler extends Scheduler {
 	 * threads to the owning thread.
 	 */
 	public boolean transferPriority;
+
+	/** The thread that last acquired this queue, if any. */
+	ThreadState holder = null;
+
+	/**
+	 * The waiting threads of each priority level, as doubly-linked lists
+	 * running through the threads' states, and a bitmap with bit
+	 * <i>i</i> set if level <i>i</i> has any.
+	 */
+	private ThreadState[] heads = new ThreadState[numLevels];
+	private ThreadState[] tails = new ThreadState[numLevels];
+	private int occupied = 0;
     }
 
     /**
@@ -186,7 +324,8 @@ public class PriorityScheduler extends Scheduler {
 	 */
 	public ThreadState(KThread thread) {
 	    this.thread = thread;
-	    
+
+	    effectivePriority = priorityDefault;
 	    setPriority(priorityDefault);
 	}
 
@@ -205,8 +344,7 @@ public class PriorityScheduler extends Scheduler {
 	 * @return	the effective priority of the associated thread.
 	 */
 	public int getEffectivePriority() {
-	    // implement me
-	    return priority;
+	    return effectivePriority;
 	}
 
 	/**
@@ -219,8 +357,56 @@ public class PriorityScheduler extends Scheduler {
 		return;
 	    
 	    this.priority = priority;
-	    
-	    // implement me
+
+	    updateEffectivePriority();
+	}
+
+	/**
+	 * Recompute the effective priority of the associated thread from its
+	 * own priority and the priorities donated through the queues it holds.
+	 * If it changes, move the thread within the queue it is waiting on, and
+	 * pass the change on to that queue's holder.
+	 */
+	void updateEffectivePriority() {
+	    ThreadState state = this;
+
+	    // iterate rather than recurse, since donation chains can be long
+	    while (true) {
+		int effective = state.priority;
+		for (Iterator<PriorityQueue> i=state.heldQueues.iterator();
+		     i.hasNext(); )
+		    effective = state.addDonation(effective,
+						  i.next().getDonatedPriority());
+
+		if (effective == state.effectivePriority)
+		    return;
+
+		state.effectivePriority = effective;
+
+		PriorityQueue queue = state.waitQueue;
+		if (queue == null)
+		    return;
+
+		queue.update(state);
+
+		if (!queue.transferPriority || queue.holder == null)
+		    return;
+
+		state = queue.holder;
+	    }
+	}
+
+	/**
+	 * Combine an effective priority with the priority donated through one
+	 * of the queues the associated thread holds. A priority scheduler takes
+	 * the maximum.
+	 *
+	 * @param	effective	the effective priority so far.
+	 * @param	donated		the priority donated through a queue.
+	 * @return	the combined effective priority.
+	 */
+	protected int addDonation(int effective, int donated) {
+	    return Math.max(effective, donated);
 	}
 
 	/**
@@ -236,7 +422,13 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#waitForAccess
 	 */
 	public void waitForAccess(PriorityQueue waitQueue) {
-	    // implement me
+	    Lib.assertTrue(this.waitQueue == null);
+
+	    this.waitQueue = waitQueue;
+	    waitTime = numWaits++;
+	    waitQueue.insert(this);
+
+	    waitQueue.donationChanged();
 	}
 
 	/**
@@ -250,12 +442,55 @@ public class PriorityScheduler extends Scheduler {
 	 * @see	nachos.threads.ThreadQueue#nextThread
 	 */
 	public void acquire(PriorityQueue waitQueue) {
-	    // implement me
-	}	
+	    if (waitQueue.holder != null)
+		waitQueue.holder.release(waitQueue);
+
+	    waitQueue.holder = this;
+
+	    if (waitQueue.transferPriority) {
+		heldQueues.add(waitQueue);
+		updateEffectivePriority();
+	    }
+	}
+
+	/**
+	 * Called when the associated thread gives up its access to
+	 * <tt>waitQueue</tt>, so that the threads waiting on it no longer
+	 * donate their priority to it.
+	 */
+	void release(PriorityQueue waitQueue) {
+	    Lib.assertTrue(waitQueue.holder == this);
+	    waitQueue.holder = null;
+
+	    if (waitQueue.transferPriority) {
+		heldQueues.remove(waitQueue);
+		updateEffectivePriority();
+	    }
+	}
 
 	/** The thread with which this object is associated. */	   
 	protected KThread thread;
 	/** The priority of the associated thread. */
 	protected int priority;
+	/** The cached effective priority of the associated thread. */
+	protected int effectivePriority;
+
+	/** The queues held by the associated thread that transfer priority. */
+	private LinkedList<PriorityQueue> heldQueues =
+	    new LinkedList<PriorityQueue>();
+
+	/** The queue the associated thread is waiting on, if any. */
+	PriorityQueue waitQueue = null;
+	/** When the associated thread started waiting on <tt>waitQueue</tt>. */
+	long waitTime;
+	/** The level <tt>waitQueue</tt> has filed the associated thread under. */
+	int level;
+	/** The neighbours of the associated thread in its level's FIFO. */
+	ThreadState prevWaiter, nextWaiter;
     }
+
+    private static final int numLevels = priorityMaximum - priorityMinimum + 1;
+
+    /** The number of times any thread has started waiting on a queue. */
+    private long numWaits = 0;
 }
@@ -0,0 +1,227 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.LinkedList;
+
+/**
+ * A Tester for the PriorityScheduler class. Only runs when the kernel was
+ * configured to use a <tt>PriorityScheduler</tt>.
+ */
+public class PrioritySchedulerTest {
+	static char debugFlag = 'P';
+
+	/**
+	 * Threads leave a queue in order of priority, and in the order they
+	 * arrived among threads of the same priority.
+	 */
+	private static void testOrder() {
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+		int[] priorities = { 1, 5, 3, 5, 0, 7, 3, 1 };
+		KThread[] threads = new KThread[priorities.length];
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("order" + i);
+			ThreadedKernel.scheduler.setPriority(threads[i], priorities[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		int[] expected = { 5, 1, 3, 2, 6, 0, 7, 4 };
+		for (int i = 0; i < expected.length; i++)
+			Lib.assertTrue(queue.nextThread() == threads[expected[i]]);
+		Lib.assertTrue(queue.nextThread() == null);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Priority is donated along a chain of queues, and taken back again when
+	 * the donor's priority drops or the holder gives up access.
+	 */
+	private static void testChain() {
+		int length = 100;
+		ThreadQueue[] queues = new ThreadQueue[length];
+		KThread[] threads = new KThread[length+1];
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		// thread i holds queue i, and waits on queue i-1
+		for (int i = 0; i <= length; i++) {
+			threads[i] = new KThread().setName("chain" + i);
+			if (i < length) {
+				queues[i] = ThreadedKernel.scheduler.newThreadQueue(true);
+				queues[i].acquire(threads[i]);
+			}
+			if (i > 0)
+				queues[i-1].waitForAccess(threads[i]);
+		}
+
+		Scheduler s = ThreadedKernel.scheduler;
+		for (int i = 0; i <= length; i++)
+			Lib.assertTrue(s.getEffectivePriority(threads[i]) ==
+				       PriorityScheduler.priorityDefault);
+
+		s.setPriority(threads[length], PriorityScheduler.priorityMaximum);
+		for (int i = 0; i <= length; i++)
+			Lib.assertTrue(s.getEffectivePriority(threads[i]) ==
+				       PriorityScheduler.priorityMaximum);
+
+		s.setPriority(threads[length], 4);
+		for (int i = 0; i <= length; i++)
+			Lib.assertTrue(s.getEffectivePriority(threads[i]) == 4);
+
+		// the middle of the chain gives up its queue to the thread after it
+		int middle = length / 2;
+		Lib.assertTrue(queues[middle].nextThread() == threads[middle+1]);
+		Lib.assertTrue(s.getEffectivePriority(threads[middle]) ==
+			       PriorityScheduler.priorityDefault);
+		Lib.assertTrue(s.getEffectivePriority(threads[0]) ==
+			       PriorityScheduler.priorityDefault);
+		Lib.assertTrue(s.getEffectivePriority(threads[middle+1]) == 4);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * A low priority thread holding a lock wanted by a high priority thread
+	 * runs ahead of medium priority threads that would otherwise starve it.
+	 */
+	private static void testInversion() {
+		final Lock lock = new Lock();
+		final LinkedList<String> finished = new LinkedList<String>();
+		final boolean[] locked = { false };
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				locked[0] = true;
+				for (int i = 0; i < 5; i++)
+					KThread.yield();
+				lock.release();
+				finished.add("low");
+			}
+		}).setName("low");
+
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				lock.release();
+				finished.add("high");
+			}
+		}).setName("high");
+
+		KThread[] medium = new KThread[3];
+		for (int i = 0; i < medium.length; i++) {
+			medium[i] = new KThread(new Runnable() {
+				public void run() {
+					for (int j = 0; j < 10; j++)
+						KThread.yield();
+					finished.add("medium");
+				}
+			}).setName("medium" + i);
+		}
+
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(low, 1);
+		ThreadedKernel.scheduler.setPriority(high, 6);
+		for (int i = 0; i < medium.length; i++)
+			ThreadedKernel.scheduler.setPriority(medium[i], 4);
+		// keep the tester ahead of everything it forks until they all exist
+		int priority = ThreadedKernel.scheduler.getPriority();
+		ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		low.fork();
+		// let low take the lock
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(priority);
+		Machine.interrupt().restore(intStatus);
+		while (!locked[0])
+			KThread.yield();
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(PriorityScheduler.priorityMaximum);
+		Machine.interrupt().restore(intStatus);
+
+		high.fork();
+		for (int i = 0; i < medium.length; i++)
+			medium[i].fork();
+
+		intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(priority);
+		Machine.interrupt().restore(intStatus);
+
+		high.join();
+		low.join();
+		for (int i = 0; i < medium.length; i++)
+			medium[i].join();
+
+		Lib.debug(debugFlag, "Finishing order: " + finished);
+		Lib.assertTrue(finished.get(0).equals("low"));
+		Lib.assertTrue(finished.get(1).equals("high"));
+	}
+
+	/**
+	 * Threads waiting on a communicator or a channel are woken in order of
+	 * priority, not in the order they started waiting.
+	 */
+	private static void testWaiters() {
+		final Communicator communicator = new Communicator();
+		final Channel channel = new Channel(1);
+
+		for (int round = 0; round < 2; round++) {
+			final boolean useChannel = (round == 1);
+			final int[] heard = new int[2];
+			int[] priorities = { 3, 5 };
+			KThread[] listeners = new KThread[priorities.length];
+
+			// each listener waits before the tester speaks, the low one first
+			for (int i = 0; i < listeners.length; i++) {
+				final int id = i;
+				listeners[i] = new KThread(new Runnable() {
+					public void run() {
+						heard[id] = useChannel ? channel.listen()
+								: communicator.listen();
+					}
+				}).setName("waiter" + i);
+
+				boolean intStatus = Machine.interrupt().disable();
+				ThreadedKernel.scheduler.setPriority(listeners[i],
+						priorities[i]);
+				Machine.interrupt().restore(intStatus);
+
+				listeners[i].fork();
+				KThread.yield();
+			}
+
+			// let the woken listener take each word before the next
+			for (int word = 1; word <= listeners.length; word++) {
+				if (useChannel)
+					channel.speak(word);
+				else
+					communicator.speak(word);
+				KThread.yield();
+			}
+
+			for (int i = 0; i < listeners.length; i++)
+				listeners[i].join();
+
+			Lib.debug(debugFlag, (useChannel ? "Channel" : "Communicator")
+					+ " words heard: " + heard[0] + " " + heard[1]);
+			Lib.assertTrue(heard[1] == 1 && heard[0] == 2);
+		}
+	}
+
+	public static void runTest() {
+		if (ThreadedKernel.scheduler.getClass() != PriorityScheduler.class)
+			return;
+
+		System.out.println("**** PriorityScheduler test START ****");
+		testOrder();
+		testChain();
+		testInversion();
+		testWaiters();
+		System.out.println("**** PriorityScheduler test FINISHED ****");
+	}
+}
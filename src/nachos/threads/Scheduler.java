@@ -154,4 +154,51 @@ public abstract class Scheduler {
     public boolean decreasePriority() {
 	return false;
     }
+
+    /**
+     * Get the absolute deadline of the specified thread's current job. Must
+     * be called with interrupts disabled.
+     *
+     * @param	thread	the thread whose deadline should be returned.
+     * @return	the deadline, in ticks, or <tt>Long.MAX_VALUE</tt> if the
+     *		thread has none.
+     */
+    public long getDeadline(KThread thread) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+	return Long.MAX_VALUE;
+    }
+
+    /**
+     * Set the absolute deadline of the specified thread's current job. Must be
+     * called with interrupts disabled. Schedulers that don't schedule by
+     * deadline ignore it.
+     *
+     * @param	thread		the thread whose deadline is being set.
+     * @param	deadline	the new deadline, in ticks, or
+     *				<tt>Long.MAX_VALUE</tt> for none.
+     */
+    public void setDeadline(KThread thread, long deadline) {
+	Lib.assertTrue(Machine.interrupt().disabled());
+    }
+
+    /**
+     * Called by the alarm on every timer interrupt, with interrupts disabled.
+     * A scheduler can preempt the current thread from here by calling
+     * <tt>KThread.yield()</tt>. The default does nothing, so that threads only
+     * give up the CPU when they block or yield.
+     */
+    public void timerInterrupt() {
+    }
+
+    /**
+     * Called by <tt>KThread</tt> just before the CPU is switched from
+     * <i>previous</i> to <i>next</i>, with interrupts disabled. The two are the
+     * same thread if it yielded and nothing else was ready. The default does
+     * nothing.
+     *
+     * @param	previous	the thread giving up the CPU.
+     * @param	next		the thread about to run.
+     */
+    public void switchThreads(KThread previous, KThread next) {
+    }
 }
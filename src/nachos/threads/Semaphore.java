@@ -49,6 +49,52 @@ public class Semaphore {
 	Machine.interrupt().restore(intStatus);
     }
 
+    /**
+     * Like <tt>P()</tt>, but give up if the semaphore is still zero after
+     * <i>timeout</i> ticks. A thread that gives up is taken off the wait
+     * queue by the timer interrupt, so it can no longer be woken by
+     * <tt>V()</tt>.
+     *
+     * @param	timeout	the most ticks to wait, or zero not to wait at all.
+     * @return	<tt>true</tt> if the semaphore was decremented,
+     *		<tt>false</tt> if the wait timed out.
+     */
+    public boolean P(long timeout) {
+	boolean intStatus = Machine.interrupt().disable();
+
+	boolean decremented = true;
+	if (value > 0) {
+	    value--;
+	}
+	else if (timeout <= 0) {
+	    decremented = false;
+	}
+	else {
+	    final KThread thread = KThread.currentThread();
+	    final boolean[] timedOut = { false };
+
+	    waitQueue.waitForAccess(thread);
+	    Alarm.Timeout alarm =
+		ThreadedKernel.alarm.waitUntil(timeout, new Runnable() {
+			public void run() {
+			    // V() may have dequeued us already
+			    if (waitQueue.remove(thread)) {
+				timedOut[0] = true;
+				thread.ready();
+			    }
+			}
+		    });
+
+	    KThread.sleep();
+
+	    alarm.cancel();
+	    decremented = !timedOut[0];
+	}
+
+	Machine.interrupt().restore(intStatus);
+	return decremented;
+    }
+
     /**
      * Atomically increment this semaphore and wake up at most one other thread
      * sleeping on this semaphore.
@@ -0,0 +1,241 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+import java.util.Arrays;
+
+/**
+ * A scheduler that chooses threads using stride scheduling.
+ *
+ * <p>
+ * Like a lottery scheduler, a stride scheduler associates a number of tickets
+ * with each thread, and gives each thread a share of its resources in
+ * proportion to its tickets. Instead of holding a random lottery, each
+ * thread's position in a queue is given by its <i>pass</i>, and the thread
+ * with the lowest pass is dequeued. Each time a thread is dequeued, the next
+ * time it waits on the queue its pass is its <i>stride</i> past the pass of
+ * the thread dequeued last, where the stride is inversely proportional to
+ * the thread's tickets. Threads with the same pass are dequeued in the order
+ * they started waiting.
+ *
+ * <p>
+ * Since no randomness is involved, the share each thread gets is exact to
+ * within one dequeue, rather than only on average.
+ *
+ * <p>
+ * Tickets are transferred through locks and joins as in a lottery scheduler,
+ * adding to the holder's own. When a waiting thread's tickets change, the
+ * rest of its stride is scaled to match, so it neither gains nor loses from
+ * the change.
+ */
+public class StrideScheduler extends LotteryScheduler {
+    /**
+     * Allocate a new stride scheduler.
+     */
+    public StrideScheduler() {
+    }
+
+    /**
+     * Allocate a new stride thread queue.
+     *
+     * @param	transferPriority	<tt>true</tt> if this queue should
+     *					transfer tickets from waiting threads
+     *					to the owning thread.
+     * @return	a new stride thread queue.
+     */
+    public ThreadQueue newThreadQueue(boolean transferPriority) {
+	return new StrideQueue(transferPriority);
+    }
+
+    protected ThreadState getThreadState(KThread thread) {
+	if (thread.schedulingState == null)
+	    thread.schedulingState = new StrideThreadState(thread);
+
+	return (ThreadState) thread.schedulingState;
+    }
+
+    /**
+     * The stride of a thread holding a single ticket. Every thread's stride
+     * is this divided by its tickets, so it is large enough that even a
+     * thread holding <tt>priorityMaximum</tt> tickets has a stride of one.
+     */
+    public static final long stride1 = 1L << 31;
+
+    /**
+     * A <tt>ThreadQueue</tt> that dequeues the thread with the lowest pass.
+     */
+    protected class StrideQueue extends PriorityQueue {
+	StrideQueue(boolean transferPriority) {
+	    super(transferPriority);
+	}
+
+	public KThread nextThread() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    // the queue's pass moves up to that of the thread dequeued
+	    if (numWaiting > 0)
+		pass = Math.max(pass, passes[0]);
+
+	    return super.nextThread();
+	}
+
+	protected ThreadState pickNextThread() {
+	    if (numWaiting == 0)
+		return null;
+
+	    return waiting[0];
+	}
+
+	/**
+	 * Return the total number of tickets held by the waiting threads, or
+	 * <tt>priorityMaximum</tt> if there are more than that.
+	 *
+	 * @return	the number of tickets donated by the waiting threads.
+	 */
+	protected int getDonatedPriority() {
+	    return (int) Math.min(totalTickets, priorityMaximum);
+	}
+
+	public void print() {
+	    Lib.assertTrue(Machine.interrupt().disabled());
+
+	    for (int i=0; i<numWaiting; i++)
+		System.out.print(waiting[i].thread + " (pass " + passes[i] +
+				 ") ");
+	}
+
+	void insert(ThreadState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+
+	    strideState.tickets = state.effectivePriority;
+	    strideState.pass = pass + stride1 / strideState.tickets;
+	    totalTickets += strideState.tickets;
+
+	    if (numWaiting == waiting.length) {
+		waiting = Arrays.copyOf(waiting, numWaiting*2);
+		passes = Arrays.copyOf(passes, numWaiting*2);
+		waitTimes = Arrays.copyOf(waitTimes, numWaiting*2);
+	    }
+
+	    siftUp(numWaiting++, strideState);
+	}
+
+	void remove(ThreadState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+	    int i = strideState.slot;
+
+	    totalTickets -= strideState.tickets;
+
+	    // fill the hole with the last entry, which may need to go either way
+	    StrideThreadState last = (StrideThreadState) waiting[--numWaiting];
+	    waiting[numWaiting] = null;
+	    if (i == numWaiting)
+		return;
+
+	    siftDown(i, last);
+	    if (last.slot == i)
+		siftUp(i, last);
+	}
+
+	/**
+	 * Scale the part of the thread's stride that it has yet to wait out
+	 * by the change in its tickets, and move it accordingly.
+	 */
+	void update(ThreadState state) {
+	    StrideThreadState strideState = (StrideThreadState) state;
+	    long tickets = state.effectivePriority;
+
+	    long remaining = strideState.pass - pass;
+	    strideState.pass = pass + remaining * strideState.tickets / tickets;
+
+	    totalTickets += tickets - strideState.tickets;
+	    strideState.tickets = tickets;
+
+	    int i = strideState.slot;
+	    siftDown(i, strideState);
+	    if (strideState.slot == i)
+		siftUp(i, strideState);
+	}
+
+	/**
+	 * Place the specified thread at heap index <tt>i</tt>, or above it if
+	 * its pass is lower than its parents'.
+	 */
+	private void siftUp(int i, StrideThreadState state) {
+	    while (i > 0) {
+		int parent = (i-1) / 2;
+		if (!earlier(state.pass, state.waitTime,
+			     passes[parent], waitTimes[parent]))
+		    break;
+
+		place(i, (StrideThreadState) waiting[parent]);
+		i = parent;
+	    }
+	    place(i, state);
+	}
+
+	/**
+	 * Place the specified thread at heap index <tt>i</tt>, or below it if
+	 * its pass is higher than its children's.
+	 */
+	private void siftDown(int i, StrideThreadState state) {
+	    while (true) {
+		int child = 2*i + 1;
+		if (child >= numWaiting)
+		    break;
+		if (child+1 < numWaiting &&
+		    earlier(passes[child+1], waitTimes[child+1],
+			    passes[child], waitTimes[child]))
+		    child++;
+		if (!earlier(passes[child], waitTimes[child],
+			     state.pass, state.waitTime))
+		    break;
+
+		place(i, (StrideThreadState) waiting[child]);
+		i = child;
+	    }
+	    place(i, state);
+	}
+
+	private void place(int i, StrideThreadState state) {
+	    waiting[i] = state;
+	    passes[i] = state.pass;
+	    waitTimes[i] = state.waitTime;
+	    state.slot = i;
+	}
+
+	/**
+	 * The waiting threads as a binary min-heap ordered by pass and then by
+	 * when they started waiting. The keys are kept in arrays of their own
+	 * next to the threads, so comparisons don't touch the thread states.
+	 */
+	private ThreadState[] waiting = new ThreadState[initialCapacity];
+	private long[] passes = new long[initialCapacity];
+	private long[] waitTimes = new long[initialCapacity];
+	private int numWaiting = 0;
+
+	private long totalTickets = 0;
+
+	/** The pass of the thread dequeued last. */
+	private long pass = 0;
+    }
+
+    /**
+     * The scheduling state of a thread in a stride scheduler.
+     */
+    protected class StrideThreadState extends LotteryThreadState {
+	public StrideThreadState(KThread thread) {
+	    super(thread);
+	}
+
+	/** The pass of the associated thread in the queue it waits on. */
+	long pass;
+    }
+
+    private static boolean earlier(long pass1, long waitTime1,
+				   long pass2, long waitTime2) {
+	return pass1 < pass2 || (pass1 == pass2 && waitTime1 < waitTime2);
+    }
+
+    private static final int initialCapacity = 4;
+}
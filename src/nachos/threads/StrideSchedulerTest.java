@@ -0,0 +1,112 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the StrideScheduler class. Only runs when the kernel was
+ * configured to use a <tt>StrideScheduler</tt>.
+ */
+public class StrideSchedulerTest {
+	static char debugFlag = 'P';
+
+	/**
+	 * Dequeue threads the specified number of times, putting each straight
+	 * back, and count how often each one comes out.
+	 */
+	private static int[] draw(ThreadQueue queue, KThread[] threads,
+				  int draws) {
+		int[] wins = new int[threads.length];
+
+		for (int d = 0; d < draws; d++) {
+			KThread thread = queue.nextThread();
+			for (int i = 0; i < threads.length; i++) {
+				if (threads[i] == thread)
+					wins[i]++;
+			}
+			queue.waitForAccess(thread);
+		}
+
+		return wins;
+	}
+
+	/**
+	 * Threads are dequeued in exact proportion to their tickets, and a
+	 * change in tickets takes effect from then on.
+	 */
+	private static void testShare() {
+		ThreadQueue queue = ThreadedKernel.scheduler.newThreadQueue(false);
+		int[] tickets = { 1, 2, 7, 10 };
+		KThread[] threads = new KThread[tickets.length];
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("share" + i);
+			ThreadedKernel.scheduler.setPriority(threads[i], tickets[i]);
+			queue.waitForAccess(threads[i]);
+		}
+
+		int[] wins = draw(queue, threads, 2000);
+		for (int i = 0; i < threads.length; i++) {
+			Lib.debug(debugFlag, threads[i] + " won " + wins[i] + " times");
+			Lib.assertTrue(Math.abs(wins[i] - 100 * tickets[i]) <= 1);
+		}
+
+		// give the first thread as many tickets as all the others together
+		ThreadedKernel.scheduler.setPriority(threads[0], 19);
+		wins = draw(queue, threads, 3800);
+		Lib.assertTrue(Math.abs(wins[0] - 1900) <= 2);
+		for (int i = 1; i < threads.length; i++)
+			Lib.assertTrue(Math.abs(wins[i] - 100 * tickets[i]) <= 2);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Tickets transferred through queues add up along a chain of holders,
+	 * and decide who is dequeued from the queue the holder waits on.
+	 */
+	private static void testTransfer() {
+		Scheduler s = ThreadedKernel.scheduler;
+		ThreadQueue lock = s.newThreadQueue(true);
+		ThreadQueue ready = s.newThreadQueue(false);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		KThread holder = new KThread().setName("holder");
+		KThread rival = new KThread().setName("rival");
+		s.setPriority(rival, 10);
+		lock.acquire(holder);
+		ready.waitForAccess(holder);
+		ready.waitForAccess(rival);
+
+		KThread[] waiters = new KThread[4];
+		for (int i = 0; i < waiters.length; i++) {
+			waiters[i] = new KThread().setName("waiter" + i);
+			s.setPriority(waiters[i], 5);
+			lock.waitForAccess(waiters[i]);
+		}
+
+		// 1 + 4*5 tickets against 10
+		Lib.assertTrue(s.getEffectivePriority(holder) == 21);
+		int[] wins = draw(ready, new KThread[] { holder, rival }, 310);
+		Lib.assertTrue(Math.abs(wins[0] - 210) <= 1);
+
+		KThread winner = lock.nextThread();
+		Lib.assertTrue(winner == waiters[0]);
+		Lib.assertTrue(s.getEffectivePriority(holder) == 1);
+		Lib.assertTrue(s.getEffectivePriority(winner) == 20);
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	public static void runTest() {
+		if (!(ThreadedKernel.scheduler instanceof StrideScheduler))
+			return;
+
+		System.out.println("**** StrideScheduler test START ****");
+		testShare();
+		testTransfer();
+		System.out.println("**** StrideScheduler test FINISHED ****");
+	}
+}
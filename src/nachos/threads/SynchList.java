@@ -1,35 +1,100 @@
 package nachos.threads;
 
-import java.util.LinkedList;
+import java.util.Collection;
 import nachos.machine.*;
 import nachos.threads.*;
 
 /**
- * A synchronized queue.
+ * A synchronized queue, optionally bounded.
+ *
+ * <p>
+ * The queue is kept in a ring array, allocated the first time anything is
+ * added to it and doubled as needed, up to the capacity. A bounded queue
+ * makes producers wait, or refuses them in <tt>offer()</tt>, once it is full.
+ * Consumers can also take what is there without waiting, with
+ * <tt>poll()</tt>, or take several elements at once, with
+ * <tt>drainTo()</tt>.
+ *
+ * @param	<T>	the type of the elements.
  */
-public class SynchList {
+public class SynchList<T> {
     /**
-     * Allocate a new synchronized queue.
+     * Allocate a new unbounded synchronized queue.
      */
     public SynchList() {
-	list = new LinkedList<Object>();
+	this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Allocate a new synchronized queue that holds at most <i>capacity</i>
+     * elements.
+     *
+     * @param	capacity	the most elements the queue can hold.
+     */
+    public SynchList(int capacity) {
+	Lib.assertTrue(capacity > 0);
+
+	this.capacity = capacity;
 	lock = new Lock();
-	listEmpty = new Condition(lock);
+	listEmpty = new Condition2(lock);
+	listFull = new Condition2(lock);
     }
 
     /**
-     * Add the specified object to the end of the queue. If another thread is
-     * waiting in <tt>removeFirst()</tt>, it is woken up.
+     * Add the specified object to the end of the queue, waiting first while
+     * the queue is full. If another thread is waiting in
+     * <tt>removeFirst()</tt>, it is woken up.
      *
      * @param	o	the object to add. Must not be <tt>null</tt>.
      */
-    public void add(Object o) {
+    public void add(T o) {
 	Lib.assertTrue(o != null);
-	
+
 	lock.acquire();
-	list.add(o);
-	listEmpty.wake();
+	while (count == capacity)
+	    listFull.sleep();
+	append(o);
+	lock.release();
+    }
+
+    /**
+     * Add the specified object to the end of the queue if there is room for
+     * it, without waiting.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @return	<tt>true</tt> if the object was added, <tt>false</tt> if the
+     *		queue was full.
+     */
+    public boolean offer(T o) {
+	return offer(o, 0);
+    }
+
+    /**
+     * Add the specified object to the end of the queue, waiting at most
+     * <i>timeout</i> ticks for there to be room for it.
+     *
+     * @param	o	the object to add. Must not be <tt>null</tt>.
+     * @param	timeout	the most ticks to wait.
+     * @return	<tt>true</tt> if the object was added, <tt>false</tt> if the
+     *		queue stayed full.
+     */
+    public boolean offer(T o, long timeout) {
+	Lib.assertTrue(o != null);
+
+	lock.acquire();
+	long deadline = Machine.timer().getTime() + timeout;
+	while (count == capacity) {
+	    long left = deadline - Machine.timer().getTime();
+	    if (left <= 0 || !listFull.sleepFor(left))
+		break;
+	}
+
+	boolean added = (count < capacity);
+	if (added)
+	    append(o);
 	lock.release();
+
+	return added;
     }
 
     /**
@@ -38,39 +103,151 @@ public class SynchList {
      *
      * @return	the element removed from the front of the queue.
      */
-    public Object removeFirst() {
-	Object o;
+    public T removeFirst() {
+	T o;
 
 	lock.acquire();
-	while (list.isEmpty())
+	while (count == 0)
 	    listEmpty.sleep();
-	o = list.removeFirst();
+	o = take();
 	lock.release();
 
 	return o;
     }
 
+    /**
+     * Remove an object from the front of the queue if there is one, without
+     * waiting.
+     *
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue was empty.
+     */
+    public T poll() {
+	return poll(0);
+    }
+
+    /**
+     * Remove an object from the front of the queue, waiting at most
+     * <i>timeout</i> ticks for there to be one.
+     *
+     * @param	timeout	the most ticks to wait.
+     * @return	the element removed from the front of the queue, or
+     *		<tt>null</tt> if the queue stayed empty.
+     */
+    public T poll(long timeout) {
+	lock.acquire();
+	long deadline = Machine.timer().getTime() + timeout;
+	while (count == 0) {
+	    long left = deadline - Machine.timer().getTime();
+	    if (left <= 0 || !listEmpty.sleepFor(left))
+		break;
+	}
+
+	T o = (count > 0) ? take() : null;
+	lock.release();
+
+	return o;
+    }
+
+    /**
+     * Remove up to <i>max</i> objects from the front of the queue, without
+     * waiting, and add them to the specified collection in order. Producers
+     * waiting for room are woken up for each one removed.
+     *
+     * @param	c	the collection to add the objects to.
+     * @param	max	the most objects to remove.
+     * @return	the number of objects removed.
+     */
+    public int drainTo(Collection<? super T> c, int max) {
+	lock.acquire();
+
+	int n = Math.min(count, max);
+	for (int i=0; i<n; i++) {
+	    c.add(items[head]);
+	    items[head] = null;
+	    head = (head + 1) % items.length;
+	}
+	count -= n;
+
+	for (int i=0; i<n; i++)
+	    listFull.wake();
+
+	lock.release();
+	return n;
+    }
+
+    /**
+     * Return the number of objects in the queue. As with semaphores, the
+     * number may have changed by the time the caller looks at it.
+     *
+     * @return	the number of objects in the queue.
+     */
+    public int size() {
+	return count;
+    }
+
+    /**
+     * Add an object at the end of the ring, growing it if it is full, and
+     * wake up a consumer. The lock must be held and there must be room.
+     */
+    private void append(T o) {
+	if (items == null || count == items.length)
+	    grow();
+
+	items[(head + count) % items.length] = o;
+	count++;
+	listEmpty.wake();
+    }
+
+    /**
+     * Remove the object at the front of the ring, and wake up a producer.
+     * The lock must be held and the ring must not be empty.
+     */
+    private T take() {
+	T o = items[head];
+	items[head] = null;
+	head = (head + 1) % items.length;
+	count--;
+	listFull.wake();
+
+	return o;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void grow() {
+	int size = (items == null) ? 0 : items.length;
+	int newSize = (int) Math.min((long) Math.max(size * 2, initialSize),
+				     capacity);
+
+	T[] newItems = (T[]) new Object[newSize];
+	for (int i=0; i<count; i++)
+	    newItems[i] = items[(head + i) % size];
+
+	items = newItems;
+	head = 0;
+    }
+
     private static class PingTest implements Runnable {
-	PingTest(SynchList ping, SynchList pong) {
+	PingTest(SynchList<Integer> ping, SynchList<Integer> pong) {
 	    this.ping = ping;
 	    this.pong = pong;
 	}
-	
+
 	public void run() {
 	    for (int i=0; i<10; i++)
 		pong.add(ping.removeFirst());
 	}
 
-	private SynchList ping;
-	private SynchList pong;
+	private SynchList<Integer> ping;
+	private SynchList<Integer> pong;
     }
 
     /**
      * Test that this module is working.
      */
     public static void selfTest() {
-/*	SynchList ping = new SynchList();
-	SynchList pong = new SynchList();
+/*	SynchList<Integer> ping = new SynchList<Integer>();
+	SynchList<Integer> pong = new SynchList<Integer>();
 
 	new KThread(new PingTest(ping, pong)).setName("ping").fork();
 
@@ -81,8 +258,15 @@ public class SynchList {
 	}*/
     }
 
-    private LinkedList<Object> list;
+    /** The elements, as a ring starting at <tt>head</tt>. */
+    private T[] items = null;
+    private int head = 0;
+    private int count = 0;
+    private int capacity;
+
     private Lock lock;
-    private Condition listEmpty;
-}
+    private Condition2 listEmpty;
+    private Condition2 listFull;
 
+    private static final int initialSize = 4;
+}
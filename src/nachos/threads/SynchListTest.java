@@ -0,0 +1,97 @@
+package nachos.threads;
+
+import java.util.ArrayList;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the SynchList class.
+ */
+public class SynchListTest {
+	static char debugFlag = 'w';
+
+	/**
+	 * The non-blocking calls refuse when the list is full or empty, and the
+	 * timed ones wait before they do.
+	 */
+	private static void testNonBlocking() {
+		SynchList<Integer> list = new SynchList<Integer>(2);
+
+		Lib.assertTrue(list.poll() == null);
+		Lib.assertTrue(list.offer(1) && list.offer(2));
+		Lib.assertTrue(!list.offer(3));
+		Lib.assertTrue(list.size() == 2);
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!list.offer(3, 1000));
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+
+		Lib.assertTrue(list.poll() == 1 && list.poll() == 2);
+
+		start = Machine.timer().getTime();
+		Lib.assertTrue(list.poll(1000) == null);
+		Lib.assertTrue(Machine.timer().getTime() - start >= 1000);
+	}
+
+	/**
+	 * A producer waits while a small list is full, and a consumer draining
+	 * it in batches gets everything in order.
+	 */
+	private static void testBackPressure() {
+		final SynchList<Integer> list = new SynchList<Integer>(4);
+		final int total = 100;
+
+		KThread producer = new KThread(new Runnable() {
+			public void run() {
+				for (int i = 0; i < total; i++) {
+					if (i % 2 == 0)
+						list.add(i);
+					else
+						Lib.assertTrue(list.offer(i, 100000));
+					Lib.assertTrue(list.size() <= 4);
+				}
+			}
+		}).setName("producer");
+		producer.fork();
+
+		ArrayList<Integer> got = new ArrayList<Integer>();
+		while (got.size() < total) {
+			if (list.drainTo(got, 10) == 0)
+				got.add(list.removeFirst());
+		}
+		producer.join();
+
+		for (int i = 0; i < total; i++)
+			Lib.assertTrue(got.get(i) == i);
+	}
+
+	/**
+	 * An unbounded list grows past its initial size, keeping its order
+	 * across the wrap of the ring.
+	 */
+	private static void testGrowth() {
+		SynchList<Integer> list = new SynchList<Integer>();
+
+		int next = 0, expected = 0;
+		for (int round = 1; round <= 6; round++) {
+			for (int i = 0; i < round * 7; i++)
+				list.add(next++);
+			for (int i = 0; i < round * 3; i++)
+				Lib.assertTrue(list.removeFirst() == expected++);
+		}
+
+		ArrayList<Integer> rest = new ArrayList<Integer>();
+		Lib.assertTrue(list.drainTo(rest, Integer.MAX_VALUE) == next - expected);
+		for (int i = 0; i < rest.size(); i++)
+			Lib.assertTrue(rest.get(i) == expected++);
+		Lib.assertTrue(list.size() == 0);
+	}
+
+	public static void runTest() {
+		System.out.println("**** SynchList test START ****");
+		testNonBlocking();
+		testBackPressure();
+		testGrowth();
+		System.out.println("**** SynchList test FINISHED ****");
+	}
+}
@@ -91,6 +91,31 @@ public abstract class ThreadQueue {
      */
     public abstract void acquire(KThread thread);
 
+    /**
+     * Take the specified thread off this queue without giving it access, for
+     * example because it has given up waiting after a timeout. If the queue
+     * transfers priority, the thread no longer donates priority through it.
+     * Does nothing if the thread is not waiting on this queue.
+     *
+     * @param	thread	the thread to remove.
+     * @return	<tt>true</tt> if the thread was waiting on this queue.
+     */
+    public abstract boolean remove(KThread thread);
+
+    /**
+     * Put a thread that is blocked, but not waiting on this queue, back in
+     * the queue, for example a thread woken from a condition variable that
+     * must now wait for the lock again. Unlike <tt>waitForAccess()</tt>, this
+     * does not mean the thread has just become ready to run, so a scheduler
+     * should not preempt the current thread for it or credit it for the time
+     * it slept. By default this just calls <tt>waitForAccess()</tt>.
+     *
+     * @param	thread	the thread to put back.
+     */
+    public void requeue(KThread thread) {
+	waitForAccess(thread);
+    }
+
     /**
      * Print out all the threads waiting for access, in no particular order.
      */
@@ -0,0 +1,138 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A Tester for the timed waits of <tt>Semaphore</tt>, <tt>Lock</tt> and
+ * <tt>Condition2</tt>.
+ */
+public class TimedWaitTest {
+	static char debugFlag = 'w';
+
+	/**
+	 * Fork a thread that runs the specified code after sleeping for the
+	 * specified number of ticks.
+	 */
+	private static KThread after(final long ticks, final Runnable target) {
+		KThread thread = new KThread(new Runnable() {
+			public void run() {
+				ThreadedKernel.alarm.waitUntil(ticks);
+				target.run();
+			}
+		}).setName("after" + ticks);
+		thread.fork();
+		return thread;
+	}
+
+	/**
+	 * A timed P() gives up after its timeout, and a V() that comes later is
+	 * not lost to the thread that gave up.
+	 */
+	private static void testSemaphore() {
+		final Semaphore semaphore = new Semaphore(0);
+
+		Lib.assertTrue(!semaphore.P(0));
+
+		long start = Machine.timer().getTime();
+		Lib.assertTrue(!semaphore.P(1000));
+		long waited = Machine.timer().getTime() - start;
+		Lib.debug(debugFlag, "P(1000) gave up after " + waited);
+		Lib.assertTrue(waited >= 1000);
+
+		KThread poster = after(500, new Runnable() {
+			public void run() {
+				semaphore.V();
+			}
+		});
+		start = Machine.timer().getTime();
+		Lib.assertTrue(semaphore.P(100000));
+		Lib.assertTrue(Machine.timer().getTime() - start < 100000);
+		poster.join();
+
+		semaphore.V();
+		Lib.assertTrue(semaphore.P(0));
+	}
+
+	/**
+	 * A timed acquire gives up while the lock is held, and stops donating
+	 * priority to the holder when it does.
+	 */
+	private static void testLock() {
+		final Lock lock = new Lock();
+		final Semaphore held = new Semaphore(0);
+
+		KThread holder = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				held.V();
+				ThreadedKernel.alarm.waitUntil(5000);
+				lock.release();
+			}
+		}).setName("holder");
+		holder.fork();
+		held.P();
+
+		boolean intStatus = Machine.interrupt().disable();
+		int before = ThreadedKernel.scheduler.getEffectivePriority(holder);
+		Machine.interrupt().restore(intStatus);
+
+		// make the waiting worth donating, where the scheduler allows it
+		ThreadedKernel.scheduler.increasePriority();
+		ThreadedKernel.scheduler.increasePriority();
+
+		Lib.assertTrue(!lock.tryAcquire(0));
+		Lib.assertTrue(!lock.tryAcquire(1000));
+
+		ThreadedKernel.scheduler.decreasePriority();
+		ThreadedKernel.scheduler.decreasePriority();
+
+		intStatus = Machine.interrupt().disable();
+		Lib.assertTrue(ThreadedKernel.scheduler.getEffectivePriority(holder) == before);
+		Machine.interrupt().restore(intStatus);
+
+		Lib.assertTrue(lock.tryAcquire(100000));
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+		lock.release();
+		holder.join();
+
+		Lib.assertTrue(lock.tryAcquire(0));
+		lock.release();
+	}
+
+	/**
+	 * A timed sleep on a condition returns when woken or when it times out,
+	 * holding the lock either way.
+	 */
+	private static void testCondition() {
+		final Lock lock = new Lock();
+		final Condition2 condition = new Condition2(lock);
+
+		lock.acquire();
+		Lib.assertTrue(!condition.sleepFor(0));
+		Lib.assertTrue(!condition.sleepFor(1000));
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		KThread waker = after(500, new Runnable() {
+			public void run() {
+				lock.acquire();
+				condition.wake();
+				lock.release();
+			}
+		});
+		Lib.assertTrue(condition.sleepFor(100000));
+		Lib.assertTrue(lock.isHeldByCurrentThread());
+
+		// nobody left on the condition to wake
+		condition.wake();
+		lock.release();
+		waker.join();
+	}
+
+	public static void runTest() {
+		System.out.println("**** Timed wait test START ****");
+		testSemaphore();
+		testLock();
+		testCondition();
+		System.out.println("**** Timed wait test FINISHED ****");
+	}
+}
@@ -250,6 +250,7 @@ public class UserProcess {
 			writeLength = length;
 		
 		System.arraycopy(data, offset, memory, paddr_start, writeLength);
+		Machine.processor().flushDecodeCache(page.ppn);
 		
 		vaddr += writeLength;
 		offset += writeLength;
@@ -250,6 +250,7 @@ public class UserProcess {
 					length);
 
 			System.arraycopy(data, bytesCopied, memory, paddr, bytesToCopy);
+			Machine.processor().flushDecodeCache(ppn);
 			
 			// Only used once on the initial copy, after we cross a page boundary
 			// then the next read always starts at offset 0;
@@ -0,0 +1,142 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * Adaptive replacement, in the form of Bansal and Modha's CAR, which keeps
+ * ARC's lists as clocks so that it can run on used bits instead of seeing
+ * every hit.
+ *
+ * <p>
+ * Resident pages are split between <i>T1</i>, pages used once since they
+ * were faulted in, and <i>T2</i>, pages used more than once. The ghost lists
+ * <i>B1</i> and <i>B2</i> remember pages recently evicted from each. A fault
+ * on a page in B1 means T1 was too small, and one in B2 that T2 was, and the
+ * target size of T1, <i>p</i>, moves accordingly. A scan fills T1 and
+ * leaves T2 alone.
+ *
+ * <p>
+ * The fault that loads a page also sets its used bit, which would make
+ * every page look used twice. So the first time the hand finds a new page's
+ * bit set, it only clears it and sends the page round T1 again.
+ */
+public class ARCPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new ARC policy.
+	 */
+	public ARCPolicy() {
+	}
+
+	public void initialize(VMKernel kernel) {
+		super.initialize(kernel);
+
+		size = frames.length;
+		fresh = new boolean[size];
+	}
+
+	public void pageLoaded(int ppn) {
+		long id = pageOf(ppn);
+
+		if (b1.remove(id)) {
+			target = Math.min(target + Math.max(1, b2.size() / (b1.size() + 1)), size);
+			t2.add(ppn);
+		}
+		else if (b2.remove(id)) {
+			target = Math.max(target - Math.max(1, b1.size() / (b2.size() + 1)), 0);
+			t2.add(ppn);
+		}
+		else {
+			t1.add(ppn);
+			fresh[ppn] = true;
+
+			// keep the directory to twice the size of memory
+			if (t1.size() + b1.size() > size)
+				removeOldest(b1);
+			else if (t1.size() + t2.size() + b1.size() + b2.size() > 2 * size)
+				removeOldest(b2);
+		}
+	}
+
+	public void pageFreed(int ppn) {
+		if (!t1.remove(Integer.valueOf(ppn)))
+			t2.remove(Integer.valueOf(ppn));
+	}
+
+	public int selectVictim() {
+		boolean t1Evictable = anyEvictable(t1);
+		boolean t2Evictable = anyEvictable(t2);
+
+		while (t1Evictable || t2Evictable) {
+			boolean fromT1 = t1Evictable &&
+				(t1.size() >= Math.max(1, target) || !t2Evictable);
+
+			if (fromT1) {
+				int ppn = t1.removeFirst();
+				if (!isEvictable(ppn)) {
+					t1.addLast(ppn);
+				}
+				else if (!testAndClearUsed(ppn)) {
+					b1.add(pageOf(ppn));
+					Lib.debug(dbgVM, "ARC evicting frame " + ppn + " from T1");
+					return ppn;
+				}
+				else if (fresh[ppn]) {
+					fresh[ppn] = false;
+					t1.addLast(ppn);
+				}
+				else {
+					t2.addLast(ppn);
+					t2Evictable = true;
+					t1Evictable = anyEvictable(t1);
+				}
+			}
+			else {
+				int ppn = t2.removeFirst();
+				if (!isEvictable(ppn) || testAndClearUsed(ppn)) {
+					t2.addLast(ppn);
+				}
+				else {
+					b2.add(pageOf(ppn));
+					Lib.debug(dbgVM, "ARC evicting frame " + ppn + " from T2");
+					return ppn;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean anyEvictable(LinkedList<Integer> list) {
+		for (int ppn : list) {
+			if (isEvictable(ppn))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static void removeOldest(LinkedHashSet<Long> ghosts) {
+		Iterator<Long> i = ghosts.iterator();
+		if (i.hasNext()) {
+			i.next();
+			i.remove();
+		}
+	}
+
+	/** The resident pages used once and more than once, as clocks. */
+	private LinkedList<Integer> t1 = new LinkedList<Integer>();
+	private LinkedList<Integer> t2 = new LinkedList<Integer>();
+	/** The pages recently evicted from T1 and from T2, oldest first. */
+	private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+	private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+	/** Which frames in T1 have not yet had their loading use forgiven. */
+	private boolean[] fresh;
+
+	/** The number of frames, and the size T1 is aiming for. */
+	private int size;
+	private int target = 0;
+}
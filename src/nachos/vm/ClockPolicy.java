@@ -0,0 +1,65 @@
+package nachos.vm;
+
+/**
+ * A second-chance clock that prefers clean pages. This is the default
+ * replacement policy.
+ *
+ * <p>
+ * The hand sweeps the frame table in up to four passes. The first looks for
+ * a frame that has not been used recently and is clean (it already has an
+ * up-to-date copy in swap), leaving used bits alone; the second settles for
+ * any frame that has not been used recently, clearing used bits as the hand
+ * passes. If both fail, every used bit is now clear, so repeating them is
+ * sure to find a victim unless every frame is pinned.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new clock policy.
+	 */
+	public ClockPolicy() {
+	}
+
+	public void initialize(VMKernel kernel) {
+		super.initialize(kernel);
+
+		tracked = new boolean[frames.length];
+	}
+
+	public void pageLoaded(int ppn) {
+		tracked[ppn] = true;
+	}
+
+	public void pageFreed(int ppn) {
+		tracked[ppn] = false;
+	}
+
+	public int selectVictim() {
+		for (int pass = 0; pass < 4; pass++) {
+			boolean wantClean = (pass % 2 == 0);
+			for (int i = 0; i < frames.length; i++) {
+				int ppn = hand;
+				hand = (hand + 1) % frames.length;
+
+				if (!tracked[ppn] || !isEvictable(ppn))
+					continue;
+
+				if (!frames[ppn].entry.used) {
+					if (!wantClean || isClean(ppn)) {
+						tracked[ppn] = false;
+						return ppn;
+					}
+				}
+				else if (!wantClean) {
+					testAndClearUsed(ppn);
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	/** Which frames hold pages this policy manages. */
+	private boolean[] tracked;
+	/** The frame the hand will look at next. */
+	private int hand = 0;
+}
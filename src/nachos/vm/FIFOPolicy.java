@@ -0,0 +1,39 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A replacement policy that evicts the page that has been in memory longest,
+ * whether or not it has been used since.
+ */
+public class FIFOPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new FIFO policy.
+	 */
+	public FIFOPolicy() {
+	}
+
+	public void pageLoaded(int ppn) {
+		queue.add(ppn);
+	}
+
+	public void pageFreed(int ppn) {
+		queue.remove(Integer.valueOf(ppn));
+	}
+
+	public int selectVictim() {
+		for (Iterator<Integer> i = queue.iterator(); i.hasNext();) {
+			int ppn = i.next();
+			if (isEvictable(ppn)) {
+				i.remove();
+				return ppn;
+			}
+		}
+
+		return -1;
+	}
+
+	/** The frames in the order their pages were loaded. */
+	private LinkedList<Integer> queue = new LinkedList<Integer>();
+}
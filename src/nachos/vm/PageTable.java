@@ -0,0 +1,229 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * A hash table keyed by a (pid, vpn) pair, used for the kernel's inverted
+ * page table and its records of what is in swap.
+ *
+ * <p>
+ * The pair is packed into a <tt>long</tt>, <tt>pid &lt;&lt; 32 | vpn</tt>,
+ * and the table uses open addressing with linear probing over parallel key
+ * and value arrays, so looking a page up allocates nothing. Removal shifts
+ * later entries in the probe run back rather than leaving tombstones, so
+ * lookups never slow down as pages come and go.
+ *
+ * @param <V>
+ *            the type of the values. Values may not be <tt>null</tt>.
+ */
+public class PageTable<V> {
+	/**
+	 * Allocate a new, empty page table.
+	 */
+	public PageTable() {
+		this(16);
+	}
+
+	/**
+	 * Allocate a new, empty page table with room for about <i>expected</i>
+	 * entries before it has to grow.
+	 *
+	 * @param expected
+	 *            the number of entries expected.
+	 */
+	public PageTable(int expected) {
+		int capacity = 8;
+		while (capacity < expected * 2)
+			capacity *= 2;
+
+		allocate(capacity);
+	}
+
+	/**
+	 * Pack a pid and a virtual page number into a key.
+	 */
+	public static long key(int pid, int vpn) {
+		return ((long) pid << 32) | (vpn & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Return the pid packed into a key.
+	 */
+	public static int pid(long key) {
+		return (int) (key >>> 32);
+	}
+
+	/**
+	 * Return the virtual page number packed into a key.
+	 */
+	public static int vpn(long key) {
+		return (int) key;
+	}
+
+	/**
+	 * Return the value for a page, or <tt>null</tt> if there is none.
+	 */
+	public V get(int pid, int vpn) {
+		return get(key(pid, vpn));
+	}
+
+	/**
+	 * Return the value for a key, or <tt>null</tt> if there is none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key) {
+		for (int i = slot(key);; i = (i + 1) & mask) {
+			if (values[i] == null)
+				return null;
+			if (keys[i] == key)
+				return (V) values[i];
+		}
+	}
+
+	/**
+	 * Test whether there is a value for a page.
+	 */
+	public boolean containsKey(int pid, int vpn) {
+		return get(key(pid, vpn)) != null;
+	}
+
+	/**
+	 * Set the value for a page.
+	 *
+	 * @return the value it replaced, or <tt>null</tt> if there was none.
+	 */
+	public V put(int pid, int vpn, V value) {
+		return put(key(pid, vpn), value);
+	}
+
+	/**
+	 * Set the value for a key.
+	 *
+	 * @return the value it replaced, or <tt>null</tt> if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		Lib.assertTrue(value != null);
+
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		if (++size * 2 > keys.length)
+			rehash(keys.length * 2);
+
+		return null;
+	}
+
+	/**
+	 * Remove the value for a page.
+	 *
+	 * @return the value removed, or <tt>null</tt> if there was none.
+	 */
+	public V remove(int pid, int vpn) {
+		return remove(key(pid, vpn));
+	}
+
+	/**
+	 * Remove the value for a key.
+	 *
+	 * @return the value removed, or <tt>null</tt> if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		int i = slot(key);
+		for (; values[i] != null; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				break;
+		}
+		if (values[i] == null)
+			return null;
+
+		V old = (V) values[i];
+		size--;
+
+		// Close the gap, moving back any later entry in the run that may
+		// no longer be reachable from its home slot.
+		int gap = i;
+		for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				values[gap] = values[j];
+				gap = j;
+			}
+		}
+		values[gap] = null;
+
+		return old;
+	}
+
+	/**
+	 * Return the number of entries in the table.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the keys of all the entries in the table, in no particular
+	 * order. The array is a copy, so the table may be changed while going
+	 * through it.
+	 */
+	public long[] keys() {
+		long[] result = new long[size];
+		int n = 0;
+		for (int i = 0; i < keys.length; i++) {
+			if (values[i] != null)
+				result[n++] = keys[i];
+		}
+
+		return result;
+	}
+
+	private int slot(long key) {
+		// the finalizer of MurmurHash3, so nearby pids and vpns spread out
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+
+		return (int) key & mask;
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+	}
+
+	private void rehash(int capacity) {
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				while (values[j] != null)
+					j = (j + 1) & mask;
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+
+	/** The keys and values, a slot being empty if its value is null. */
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+}
@@ -0,0 +1,208 @@
+package nachos.vm;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import nachos.machine.*;
+
+/**
+ * Measures the lookup throughput of <tt>PageTable</tt> against the
+ * <tt>HashMap</tt>s it replaced. It runs outside Nachos:
+ *
+ * <pre>
+ * java -cp nachos nachos.vm.PageTableBenchmark [processes] [pages]
+ * </pre>
+ *
+ * <p>
+ * Each table is filled with <i>processes</i> times <i>pages</i> entries
+ * (default 8 times 64), and then looked up in the two patterns the kernel
+ * uses: every page of one process in order, as <tt>syncPageTable()</tt>
+ * does on a context switch, and pages of random processes, as faults and
+ * system calls do. Each measurement is preceded by warm-up rounds so that
+ * the JIT has compiled the loop, and the lookups feed a checksum so it cannot
+ * drop them. Before timing anything, the tables are put through a random mix
+ * of puts and removes and checked to agree.
+ */
+public class PageTableBenchmark {
+	/**
+	 * The key the kernel used before <tt>PageTable</tt>, which built a
+	 * <tt>String</tt> to hash on every lookup.
+	 */
+	private static class StringKey {
+		StringKey(int pid, int vpn) {
+			this.pid = pid;
+			this.vpn = vpn;
+		}
+
+		public int hashCode() {
+			return new String(pid + "#" + vpn).hashCode();
+		}
+
+		public boolean equals(Object obj) {
+			if (!(obj instanceof StringKey))
+				return false;
+
+			StringKey k = (StringKey) obj;
+			return k.pid == pid && k.vpn == vpn;
+		}
+
+		int pid, vpn;
+	}
+
+	/**
+	 * A way of looking up one page, so that each table is timed by the same
+	 * loop.
+	 */
+	private static abstract class Table {
+		Table(String name) {
+			this.name = name;
+		}
+
+		abstract TranslationEntry get(int pid, int vpn);
+
+		String name;
+	}
+
+	public static void main(String[] args) {
+		int numProcesses = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		int numPages = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+
+		checkAgainstHashMap();
+
+		final PageTable<TranslationEntry> pageTable =
+			new PageTable<TranslationEntry>();
+		final HashMap<StringKey, TranslationEntry> stringMap =
+			new HashMap<StringKey, TranslationEntry>();
+		final HashMap<Long, TranslationEntry> longMap =
+			new HashMap<Long, TranslationEntry>();
+
+		for (int pid = 0; pid < numProcesses; pid++) {
+			for (int vpn = 0; vpn < numPages; vpn++) {
+				TranslationEntry entry = new TranslationEntry(vpn,
+						pid * numPages + vpn, true, false, false, false);
+				pageTable.put(pid, vpn, entry);
+				stringMap.put(new StringKey(pid, vpn), entry);
+				longMap.put(PageTable.key(pid, vpn), entry);
+			}
+		}
+
+		Table[] tables = new Table[] {
+			new Table("HashMap<PageId> (String hash)") {
+				TranslationEntry get(int pid, int vpn) {
+					return stringMap.get(new StringKey(pid, vpn));
+				}
+			},
+			new Table("HashMap<Long>") {
+				TranslationEntry get(int pid, int vpn) {
+					return longMap.get(PageTable.key(pid, vpn));
+				}
+			},
+			new Table("PageTable") {
+				TranslationEntry get(int pid, int vpn) {
+					return pageTable.get(pid, vpn);
+				}
+			},
+		};
+
+		// the random pattern is fixed in advance, so every table sees it
+		Random random = new Random(0);
+		int[] pids = new int[1 << 16];
+		int[] vpns = new int[pids.length];
+		for (int i = 0; i < pids.length; i++) {
+			pids[i] = random.nextInt(numProcesses);
+			vpns[i] = random.nextInt(numPages);
+		}
+
+		System.out.println("lookups per microsecond, " + numProcesses
+				+ " processes of " + numPages + " pages:");
+		for (Table table : tables) {
+			double sequential = measure(table, numProcesses, numPages, null,
+					null);
+			double scattered = measure(table, numProcesses, numPages, pids,
+					vpns);
+			System.out.println("  " + table.name + ": sequential "
+					+ format(sequential) + ", random " + format(scattered));
+		}
+	}
+
+	/**
+	 * Time lookups in one table, returning the best of several rounds in
+	 * lookups per microsecond. If <i>pids</i> is <tt>null</tt>, each round
+	 * goes through every page of every process in order.
+	 */
+	private static double measure(Table table, int numProcesses,
+			int numPages, int[] pids, int[] vpns) {
+		int lookups = (pids == null) ? numProcesses * numPages : pids.length;
+		int repeat = Math.max(1, 2000000 / lookups);
+		double best = 0;
+
+		for (int round = 0; round < warmupRounds + measuredRounds; round++) {
+			long start = System.nanoTime();
+			for (int r = 0; r < repeat; r++) {
+				if (pids == null) {
+					for (int pid = 0; pid < numProcesses; pid++) {
+						for (int vpn = 0; vpn < numPages; vpn++)
+							checksum += table.get(pid, vpn).ppn;
+					}
+				}
+				else {
+					for (int i = 0; i < pids.length; i++)
+						checksum += table.get(pids[i], vpns[i]).ppn;
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+
+			if (round >= warmupRounds)
+				best = Math.max(best, (double) lookups * repeat * 1000 / elapsed);
+		}
+
+		return best;
+	}
+
+	/**
+	 * Put a <tt>PageTable</tt> and a <tt>HashMap</tt> through the same random
+	 * puts and removes, with pids and vpns chosen to collide, and check that
+	 * they always agree.
+	 */
+	private static void checkAgainstHashMap() {
+		PageTable<Integer> table = new PageTable<Integer>();
+		HashMap<Long, Integer> map = new HashMap<Long, Integer>();
+		Random random = new Random(1);
+
+		for (int i = 0; i < 200000; i++) {
+			int pid = random.nextInt(4);
+			int vpn = random.nextInt(300) - 20;
+			long key = PageTable.key(pid, vpn);
+
+			switch (random.nextInt(3)) {
+			case 0:
+				check(table.put(pid, vpn, i), map.put(key, i));
+				break;
+			case 1:
+				check(table.remove(pid, vpn), map.remove(key));
+				break;
+			default:
+				check(table.get(pid, vpn), map.get(key));
+				break;
+			}
+			Lib.assertTrue(table.size() == map.size());
+		}
+
+		for (long key : table.keys())
+			check(table.get(key), map.get(key));
+		Lib.assertTrue(table.keys().length == map.size());
+	}
+
+	private static void check(Integer a, Integer b) {
+		Lib.assertTrue(a == null ? b == null : a.equals(b));
+	}
+
+	private static String format(double rate) {
+		return String.valueOf(Math.round(rate * 10) / 10.0);
+	}
+
+	private static long checksum = 0;
+
+	private static final int warmupRounds = 5;
+	private static final int measuredRounds = 10;
+}
@@ -0,0 +1,106 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.Frame;
+
+/**
+ * Decides which physical page <tt>VMKernel</tt> evicts when memory is full.
+ * The policy is named by <tt>VMKernel.replacementPolicy</tt> in
+ * <tt>nachos.conf</tt>.
+ *
+ * <p>
+ * The kernel tells the policy about every swappable page it puts in a frame
+ * and every such frame it frees, and asks it for a victim when it needs a
+ * frame. All three calls are made with the frame table lock held. A policy
+ * that wants to know which pages have been referenced looks at the used bits
+ * of the frames' translation entries; the kernel folds the TLB's bits into
+ * them before each call to <tt>selectVictim()</tt>.
+ */
+public abstract class ReplacementPolicy {
+	/**
+	 * Allocate a new replacement policy.
+	 */
+	public ReplacementPolicy() {
+	}
+
+	/**
+	 * Attach this policy to the kernel's frame table. Called once, before
+	 * any other method.
+	 *
+	 * @param kernel
+	 *            the kernel whose frames this policy manages.
+	 */
+	public void initialize(VMKernel kernel) {
+		this.kernel = kernel;
+		this.frames = kernel.frames;
+	}
+
+	/**
+	 * Called when a swappable page has been put in a frame. The frame's
+	 * owner and entry are already set.
+	 *
+	 * @param ppn
+	 *            the frame the page is in.
+	 */
+	public abstract void pageLoaded(int ppn);
+
+	/**
+	 * Called when a frame given to <tt>pageLoaded()</tt> is freed without
+	 * having been chosen as a victim, because its process has exited.
+	 *
+	 * @param ppn
+	 *            the frame being freed.
+	 */
+	public abstract void pageFreed(int ppn);
+
+	/**
+	 * Choose a frame to evict, and stop tracking it. The frame must not be
+	 * pinned.
+	 *
+	 * @return the frame to evict, or -1 if every frame the policy tracks is
+	 *         pinned.
+	 */
+	public abstract int selectVictim();
+
+	/**
+	 * Test whether a frame could be evicted now.
+	 */
+	protected boolean isEvictable(int ppn) {
+		return frames[ppn].entry != null && frames[ppn].pinCount == 0;
+	}
+
+	/**
+	 * Test whether a frame could be evicted without writing it to swap.
+	 */
+	protected boolean isClean(int ppn) {
+		return kernel.isClean(frames[ppn]);
+	}
+
+	/**
+	 * Return the key of the page in a frame, as packed by
+	 * <tt>PageTable.key()</tt>, for remembering pages after they are
+	 * evicted.
+	 */
+	protected long pageOf(int ppn) {
+		return PageTable.key(frames[ppn].pid, frames[ppn].vpn);
+	}
+
+	/**
+	 * Test and clear the used bit of a frame.
+	 *
+	 * @return <tt>true</tt> if the page was referenced since the bit was last
+	 *         cleared.
+	 */
+	protected boolean testAndClearUsed(int ppn) {
+		TranslationEntry entry = frames[ppn].entry;
+		boolean used = entry.used;
+		entry.used = false;
+		return used;
+	}
+
+	/** The kernel this policy works for, and its frame table. */
+	protected VMKernel kernel;
+	protected Frame[] frames;
+
+	protected static final char dbgVM = 'v';
+}
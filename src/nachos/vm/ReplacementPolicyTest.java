@@ -0,0 +1,164 @@
+package nachos.vm;
+
+import java.util.LinkedList;
+
+import nachos.machine.*;
+import nachos.vm.VMKernel.Frame;
+
+/**
+ * A tester for the replacement policies. Each policy is given a small frame
+ * table of its own, and the tester plays the part of the kernel: it loads
+ * pages into frames, sets their used bits when they are referenced, pins and
+ * frees frames, and asks the policy for a victim when memory is full.
+ */
+public class ReplacementPolicyTest {
+	/**
+	 * Set up a policy over a frame table of its own.
+	 */
+	private ReplacementPolicyTest(VMKernel kernel, String policyName,
+			int numFrames) {
+		frames = new Frame[numFrames];
+		for (int i = 0; i < numFrames; i++) {
+			frames[i] = kernel.new Frame(i);
+			freeFrames.add(i);
+		}
+
+		// A policy takes its frames from the kernel when it is initialized,
+		// so lend it this table for that long. Nothing else looks at the
+		// kernel's frames while the self test runs.
+		Frame[] kernelFrames = kernel.frames;
+		kernel.frames = frames;
+		policy = (ReplacementPolicy) Lib.constructObject(policyName);
+		policy.initialize(kernel);
+		kernel.frames = kernelFrames;
+	}
+
+	/**
+	 * Reference a page, faulting it in if it is not resident.
+	 */
+	private void touch(int pid, int vpn) {
+		Integer ppn = resident.get(pid, vpn);
+		if (ppn != null) {
+			frames[ppn].entry.used = true;
+			return;
+		}
+
+		faults++;
+		if (freeFrames.isEmpty()) {
+			int victim = policy.selectVictim();
+			Lib.assertTrue(victim != -1, "no victim with unpinned frames");
+
+			Frame frame = frames[victim];
+			Lib.assertTrue(frame.entry != null && frame.pinCount == 0,
+					"victim is free or pinned");
+			resident.remove(frame.pid, frame.vpn);
+			frame.entry = null;
+			freeFrames.add(victim);
+		}
+
+		// the fault that loads a page also references it
+		int free = freeFrames.removeFirst();
+		Frame frame = frames[free];
+		frame.pid = pid;
+		frame.vpn = vpn;
+		frame.entry = new TranslationEntry(vpn, free, true, false, true,
+				false);
+		frame.swappable = true;
+		resident.put(pid, vpn, free);
+		policy.pageLoaded(free);
+	}
+
+	/**
+	 * Free a frame, as when its process exits.
+	 */
+	private void free(int ppn) {
+		Frame frame = frames[ppn];
+		policy.pageFreed(ppn);
+		resident.remove(frame.pid, frame.vpn);
+		frame.entry = null;
+		freeFrames.add(ppn);
+	}
+
+	/**
+	 * Pinned frames are never chosen, a freed frame is forgotten, and when
+	 * every frame the policy still tracks is pinned there is no victim.
+	 */
+	private static void testPinning(VMKernel kernel, String policyName) {
+		ReplacementPolicyTest t = new ReplacementPolicyTest(kernel,
+				policyName, 4);
+
+		for (int vpn = 0; vpn < 4; vpn++)
+			t.touch(1, vpn);
+
+		// only frame 3 can go, however many pages pass through it
+		for (int ppn = 0; ppn < 3; ppn++)
+			t.frames[ppn].pinCount++;
+		for (int vpn = 4; vpn < 24; vpn++)
+			t.touch(1, vpn);
+		for (int vpn = 0; vpn < 3; vpn++)
+			Lib.assertTrue(t.resident.get(1, vpn) == vpn);
+
+		t.frames[3].pinCount++;
+		Lib.assertTrue(t.policy.selectVictim() == -1);
+
+		// frame 1 is freed, so frame 3 is the only frame left to take
+		t.frames[1].pinCount--;
+		t.free(1);
+		t.frames[3].pinCount--;
+		Lib.assertTrue(t.policy.selectVictim() == 3);
+		Lib.assertTrue(t.policy.selectVictim() == -1);
+	}
+
+	/**
+	 * A working set that fits in memory is looped over, and every few rounds
+	 * another process scans a file bigger than memory. A policy that resists
+	 * scans keeps the working set; FIFO and the clock let the scan flush it.
+	 */
+	private static int scanFaults(VMKernel kernel, String policyName) {
+		ReplacementPolicyTest t = new ReplacementPolicyTest(kernel,
+				policyName, 14);
+
+		for (int round = 0; round < 60; round++) {
+			for (int rep = 0; rep < 3; rep++) {
+				for (int vpn = 0; vpn < 12; vpn++)
+					t.touch(1, vpn);
+			}
+			if (round % 3 == 2) {
+				for (int vpn = 0; vpn < 40; vpn++)
+					t.touch(2, vpn);
+			}
+		}
+
+		Lib.debug(dbgVM, policyName + ": " + t.faults + " faults");
+		return t.faults;
+	}
+
+	public static void runTest() {
+		System.out.println("**** ReplacementPolicy test START ****");
+
+		VMKernel kernel = (VMKernel) Kernel.kernel;
+		for (String name : policyNames)
+			testPinning(kernel, "nachos.vm." + name);
+
+		int fifo = scanFaults(kernel, "nachos.vm.FIFOPolicy");
+		int clock = scanFaults(kernel, "nachos.vm.ClockPolicy");
+		int twoQ = scanFaults(kernel, "nachos.vm.TwoQPolicy");
+		int arc = scanFaults(kernel, "nachos.vm.ARCPolicy");
+		Lib.assertTrue(Math.max(twoQ, arc) < Math.min(fifo, clock),
+				"scan resistant policies lost to FIFO or the clock");
+
+		System.out.println("**** ReplacementPolicy test FINISHED ****");
+	}
+
+	private Frame[] frames;
+	private ReplacementPolicy policy;
+	private LinkedList<Integer> freeFrames = new LinkedList<Integer>();
+	/** The frame each resident page is in. */
+	private PageTable<Integer> resident = new PageTable<Integer>();
+	private int faults = 0;
+
+	private static final String[] policyNames = { "FIFOPolicy",
+			"ClockPolicy", "WSClockPolicy", "TwoQPolicy", "ARCPolicy" };
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,143 @@
+package nachos.vm;
+
+import java.util.BitSet;
+
+import nachos.machine.*;
+
+/**
+ * The swap file, divided into page-sized slots. A bitmap records which slots
+ * are in use, and the file grows as slots past its end are needed, so it
+ * starts out empty and is only as large as the most swap ever in use at
+ * once.
+ *
+ * <p>
+ * Slots are allocated in runs of consecutive slots, so that several pages
+ * can be written out with one call to the file system.
+ *
+ * <p>
+ * A swap space does no locking of its own. <tt>VMKernel</tt> allocates and
+ * frees slots with its page table lock held, and writes pages with its frame
+ * table lock held, so only one eviction writes at a time. Reads take no
+ * lock: a page is read back only by its own process, when it faults on the
+ * page, and the page keeps its slot until that process exits.
+ */
+public class SwapSpace {
+	/**
+	 * Allocate a new swap space in a file, which should be empty.
+	 *
+	 * @param file
+	 *            the file to keep the swapped pages in.
+	 */
+	public SwapSpace(OpenFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * Allocate a run of consecutive free slots. The lowest run that is big
+	 * enough is used, and if there is none, the run is put at the end of the
+	 * file, which will grow when the slots are written.
+	 *
+	 * @param count
+	 *            the number of slots needed.
+	 * @return the first slot of the run.
+	 */
+	public int allocate(int count) {
+		Lib.assertTrue(count > 0);
+
+		int start = used.nextClearBit(0);
+		while (true) {
+			int end = used.nextSetBit(start);
+			if (end == -1 || end - start >= count)
+				break;
+			start = used.nextClearBit(end);
+		}
+		used.set(start, start + count);
+
+		if (start + count > numSlots) {
+			numSlots = start + count;
+			Lib.debug(dbgVM, "Swap file grown to " + numSlots + " pages");
+		}
+
+		return start;
+	}
+
+	/**
+	 * Free a run of slots returned by <tt>allocate()</tt>, or part of one.
+	 *
+	 * @param slot
+	 *            the first slot to free.
+	 * @param count
+	 *            the number of slots to free.
+	 */
+	public void free(int slot, int count) {
+		Lib.assertTrue(slot >= 0 && count > 0 && slot + count <= numSlots);
+		Lib.assertTrue(used.get(slot, slot + count).cardinality() == count,
+				"freeing a free swap slot");
+
+		used.clear(slot, slot + count);
+	}
+
+	/**
+	 * Read the page in a slot.
+	 *
+	 * @param slot
+	 *            the slot to read.
+	 * @param buf
+	 *            the buffer to read the page into.
+	 * @param offset
+	 *            where in the buffer the page goes.
+	 */
+	public void read(int slot, byte[] buf, int offset) {
+		Lib.assertTrue(used.get(slot));
+
+		int pageSize = Processor.pageSize;
+		int read = file.read(slot * pageSize, buf, offset, pageSize);
+		Lib.assertTrue(read == pageSize, "swap read failed");
+	}
+
+	/**
+	 * Write consecutive pages to consecutive slots, in one write to the
+	 * swap file.
+	 *
+	 * @param slot
+	 *            the first slot to write.
+	 * @param buf
+	 *            the buffer holding the pages.
+	 * @param offset
+	 *            where in the buffer the first page starts.
+	 * @param count
+	 *            the number of pages to write.
+	 */
+	public void write(int slot, byte[] buf, int offset, int count) {
+		Lib.assertTrue(count > 0 &&
+				used.get(slot, slot + count).cardinality() == count);
+
+		int pageSize = Processor.pageSize;
+		int length = count * pageSize;
+		int written = file.write(slot * pageSize, buf, offset, length);
+		Lib.assertTrue(written == length, "swap write failed");
+	}
+
+	/**
+	 * Return the number of slots in use.
+	 */
+	public int getNumUsed() {
+		return used.cardinality();
+	}
+
+	/**
+	 * Return the number of slots the swap file has grown to.
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	/** The file the pages are kept in. */
+	private OpenFile file;
+	/** Which slots are in use. */
+	private BitSet used = new BitSet();
+	/** The number of slots that have ever been allocated. */
+	private int numSlots = 0;
+
+	private static final char dbgVM = 'v';
+}
@@ -0,0 +1,138 @@
+package nachos.vm;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+import nachos.machine.*;
+
+/**
+ * The 2Q policy of Johnson and Shasha. A page faulted in for the first time
+ * goes on a short FIFO queue, <i>A1in</i>, and when it falls off the end, is
+ * remembered in a ghost queue, <i>A1out</i>. Only a page that faults again
+ * while it is remembered there is taken into the main queue, <i>Am</i>,
+ * which is managed as a clock since used bits are all Nachos has to go on.
+ *
+ * <p>
+ * A1out only remembers a few pages, so a working set that is first touched
+ * just before a long scan would never get into Am. A page in A1in that is
+ * used again is therefore taken into Am when it reaches the end of A1in,
+ * rather than being evicted. As the fault that loads a page also sets its
+ * used bit, the first time a new page is found used it only goes round A1in
+ * again.
+ *
+ * <p>
+ * A scan (such as <tt>cat</tt> of a large file) passes through A1in without
+ * disturbing the pages in Am, however many pages it touches.
+ */
+public class TwoQPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new 2Q policy.
+	 */
+	public TwoQPolicy() {
+	}
+
+	public void initialize(VMKernel kernel) {
+		super.initialize(kernel);
+
+		// the sizes recommended in the paper
+		maxIn = Math.max(1, frames.length / 4);
+		maxOut = Math.max(1, frames.length / 2);
+		fresh = new boolean[frames.length];
+	}
+
+	public void pageLoaded(int ppn) {
+		long id = pageOf(ppn);
+
+		if (out.remove(id)) {
+			main.add(ppn);
+		}
+		else {
+			in.add(ppn);
+			fresh[ppn] = true;
+		}
+	}
+
+	public void pageFreed(int ppn) {
+		if (!in.remove(Integer.valueOf(ppn)))
+			main.remove(Integer.valueOf(ppn));
+	}
+
+	public int selectVictim() {
+		int ppn = -1;
+
+		if (in.size() > maxIn || main.isEmpty())
+			ppn = takeFromIn();
+		if (ppn == -1)
+			ppn = takeFromMain();
+		if (ppn == -1)
+			ppn = takeFromIn();
+
+		return ppn;
+	}
+
+	/**
+	 * Evict the oldest unpinned page from A1in that has not been used again,
+	 * remembering it in A1out. Pages that have been are moved to Am, and new
+	 * pages found used go round A1in once more.
+	 */
+	private int takeFromIn() {
+		// every page is sure to be unused on its third time round
+		for (int i = 0; i < 3 * in.size(); i++) {
+			int ppn = in.removeFirst();
+
+			if (!isEvictable(ppn)) {
+				in.addLast(ppn);
+			}
+			else if (!testAndClearUsed(ppn)) {
+				out.add(pageOf(ppn));
+				if (out.size() > maxOut) {
+					Iterator<Long> oldest = out.iterator();
+					oldest.next();
+					oldest.remove();
+				}
+
+				Lib.debug(dbgVM, "2Q evicting frame " + ppn + " from A1in");
+				return ppn;
+			}
+			else if (fresh[ppn]) {
+				fresh[ppn] = false;
+				in.addLast(ppn);
+			}
+			else {
+				main.addLast(ppn);
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Evict a page from Am that has not been used since the hand last passed
+	 * it, giving used pages a second chance.
+	 */
+	private int takeFromMain() {
+		// two turns clear every used bit, so a third finds any unpinned page
+		for (int i = 0; i < 3 * main.size(); i++) {
+			int ppn = main.removeFirst();
+			if (isEvictable(ppn) && !testAndClearUsed(ppn)) {
+				Lib.debug(dbgVM, "2Q evicting frame " + ppn + " from Am");
+				return ppn;
+			}
+			main.addLast(ppn);
+		}
+
+		return -1;
+	}
+
+	/** The frames holding pages on their first stay in memory. */
+	private LinkedList<Integer> in = new LinkedList<Integer>();
+	/** The pages most recently evicted from A1in, oldest first. */
+	private LinkedHashSet<Long> out = new LinkedHashSet<Long>();
+	/** The frames holding pages that have proved they are reused. */
+	private LinkedList<Integer> main = new LinkedList<Integer>();
+	/** Which frames in A1in have not yet had their loading use forgiven. */
+	private boolean[] fresh;
+
+	private int maxIn, maxOut;
+}
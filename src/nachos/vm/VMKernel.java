@@ -11,42 +11,48 @@ import java.util.*;
  */
 public class VMKernel extends UserKernel {
 	/**
-	 * Stores a list of available swap pages in the swap file
-	 * so that pages can be written to disk.
+	 * Allocates the slots in the swap file that pages are written to.
 	 */
-	protected LinkedList<Integer> freeSwapPages;
+	protected SwapSpace swapSpace;
 	
 	/**
 	 * Keeps track of where a given page is stored in the swap file.
 	 */
-	protected HashMap<PageId, Integer> swapPagePositions;
+	protected PageTable<Integer> swapPagePositions;
     
 	/**
-	 * A list of physical pages that should not be swapped out
-	 * as they are being used in a user process read/write operation.
+	 * The frame table, indexed by physical page number. Each frame records
+	 * which page is in it and how many read/write operations have it pinned,
+	 * so that the replacement policy can look over physical memory.
 	 */
-	protected ArrayList<Integer> pinnedPages;
+	protected Frame[] frames;
+	
+	/**
+	 * The pages each process has in memory, as the first of a circular list
+	 * of frames, so that a process can be torn down without looking at
+	 * anyone else's pages.
+	 */
+	protected HashMap<Integer, Frame> residentPages;
+	
+	/**
+	 * Chooses which page to evict when physical memory is full.
+	 */
+	protected ReplacementPolicy replacementPolicy;
     
         /**
-	 * Locks to protect the pagetable and pinned pages.
+	 * Locks to protect the pagetable and the frame table, and a condition
+	 * to wait on when every frame that could be swapped out is pinned.
 	 */
-	protected Lock pinnedPagesLock;
+	protected Lock frameTableLock;
+	protected Condition2 framesUnpinned;
 	protected Lock pageTableLock;
     
 	/**
-	 * An inverted page table that maps PageIds (a pid and a virtual page
-	 * number) to the TranslationEntry for that page (storing the physical
-	 * page number).
+	 * An inverted page table that maps a pid and a virtual page number to
+	 * the TranslationEntry for that page (storing the physical page number).
 	 */
-	public HashMap<PageId, TranslationEntry> invertedPageTable;
+	public PageTable<TranslationEntry> invertedPageTable;
     
-	/**
-	 * Stores a list of swappable pages (swap pages and read/write executable pages).
-	 * These pages are the ones that can be written to disk, as opposed
-	 * to read-only executable pages.
-	 */
-	protected ArrayList<TranslationEntry> swappablePages;
-	
 	/**
 	 * Stores pages that needed to be written to disk. 
 	 */
@@ -55,7 +61,7 @@ public class VMKernel extends UserKernel {
 	/**
 	 * Stores all of the pages that are currently swapped out to disk.
 	 */
-	protected HashMap<PageId, TranslationEntry> pagesInSwap;
+	protected PageTable<TranslationEntry> pagesInSwap;
     
 	protected final int pageSize = Processor.pageSize;
     
@@ -66,16 +72,9 @@ public class VMKernel extends UserKernel {
 		super();
 		
 		// Initialize all local storage.
-		invertedPageTable = new HashMap<PageId, TranslationEntry>();
-		swappablePages = new ArrayList<TranslationEntry>();
-		pagesInSwap = new HashMap<PageId, TranslationEntry>();
-		pinnedPages = new ArrayList<Integer>();
-		swapPagePositions = new HashMap<PageId, Integer>();
-        
-		freeSwapPages = new LinkedList<Integer>();
-		for(int i=0; i<64; i++){
-			freeSwapPages.add(i);
-		}
+		invertedPageTable = new PageTable<TranslationEntry>();
+		pagesInSwap = new PageTable<TranslationEntry>();
+		swapPagePositions = new PageTable<Integer>();
 		
 	}
     
@@ -87,13 +86,25 @@ public class VMKernel extends UserKernel {
         
 		// Create the swap file upon kernel initialization.
 		// Must be done here because the filesystem needs to be ready
-		// beforehand.
+		// beforehand. It starts out empty and grows as pages are swapped out.
 		swapFile = ThreadedKernel.fileSystem.open("nachos.swp", true);
-		byte blank[] = new byte[64 * pageSize];
-		Arrays.fill(blank, (byte)0);
-		swapFile.write(blank, 0, blank.length);
+		swapSpace = new SwapSpace(swapFile);
 		
-        pinnedPagesLock = new Lock();
+		frames = new Frame[Machine.processor().getNumPhysPages()];
+		for (int i=0; i<frames.length; i++)
+			frames[i] = new Frame(i);
+		residentPages = new HashMap<Integer, Frame>();
+		
+		// Set up the replacement policy named in the config file.
+		String policyName = Config.getString("VMKernel.replacementPolicy",
+				"nachos.vm.ClockPolicy");
+		replacementPolicy = (ReplacementPolicy) Lib.constructObject(policyName);
+		replacementPolicy.initialize(this);
+		Machine.processor().setPagingPolicy(
+				policyName.substring(policyName.lastIndexOf('.') + 1));
+		
+		frameTableLock = new Lock();
+		framesUnpinned = new Condition2(frameTableLock);
 		pageTableLock = new Lock();
 
 	}
@@ -103,6 +114,7 @@ public class VMKernel extends UserKernel {
 	 */	
 	public void selfTest() {
 		//super.selfTest();
+		ReplacementPolicyTest.runTest();
 	}
     
 	/**
@@ -128,26 +140,24 @@ public class VMKernel extends UserKernel {
 	 * file, read it in and copy it to memory, and then place a new entry
 	 * in the global pagetable for this page. If there is not enough physical
 	 * memory available, a page will be swapped to disk by getFreePage().
+	 * The page keeps its place in the swap file, so that it does not have
+	 * to be written out again if it is still clean when it is next evicted.
 	 * @param pid the process id of the process requesting the page.
 	 * @param vpn the virtual page number in that process for the page.
 	 * @return the physical page number of the page that was swapped in.
 	 */
 	public int swapInPage(int pid, int vpn) {
 		// Get a new free physical page, swapping something else out if needed.
-		TranslationEntry freePage = getFreePage(pid, vpn, true, false);
+		TranslationEntry freePage = allocatePage(pid, vpn, true, false);
+		Machine.processor().recordPageIn(true);
 
-		// TODO: read in page from swap file to memory.
-		PageId p = new PageId(pid, vpn);
-		
-		int position = swapPagePositions.get(p);
-		byte buffer[] = new byte[pageSize];
-		swapFile.read(position * pageSize, buffer, 0, pageSize);
-		System.arraycopy(buffer, 0, Machine.processor().getMemory(), 
-				freePage.ppn * pageSize, buffer.length);
+		int position = swapPagePositions.get(pid, vpn);
+		swapSpace.read(position, Machine.processor().getMemory(),
+				freePage.ppn * pageSize);
+		Machine.processor().flushDecodeCache(freePage.ppn);
 		
 		pageTableLock.acquire();
-		swapPagePositions.remove(p);
-		invertedPageTable.put(p, freePage);
+		pagesInSwap.remove(pid, vpn);
 		pageTableLock.release();
 
 		// Return the address of the new physical page.
@@ -155,68 +165,139 @@ public class VMKernel extends UserKernel {
 	}
     
 	/**
-	 * Given a pid and vpn, finds a physical page to swap out
-	 * and replace with the page for that pid/vpn combo.
-	 * @param pid the pid of the process owning the page.
-	 * @param vpn the virtual page number of the page inside that process.
+	 * Picks a physical page to evict using the replacement policy, writes it
+	 * to the swap file if needed, and unmaps it from its owner. If every
+	 * page the policy could choose is pinned, waits for one to be unpinned.
 	 * @return the physical page number of the newly empty page.
 	 */
-	private int swapOutPage(int pid, int vpn)
+	private int swapOutPage()
 	{
-		Random rand = new Random();
-		int startpage = rand.nextInt() % Machine.processor().getNumPhysPages();
-		int page = startpage;
-		TranslationEntry ppage = null;
+		frameTableLock.acquire();
 		
-		pinnedPagesLock.acquire();
-		
-		boolean pagefreed = false;
-		
-		while(!pagefreed)
-		{
-			page++;
-			if(page == Machine.processor().getNumPhysPages())
-				page = 0;
-			
-			if(page == startpage - 1)
+		int ppn;
+		while (true) {
+			syncTLBEntries();
+			if ((ppn = replacementPolicy.selectVictim()) != -1)
 				break;
 			
-			ppage = swappablePages.get(page);
-			
-			if(!ppage.dirty && !ppage.used && ppage.valid)
-				pagefreed = true;
+			Lib.assertTrue(numPinnedFrames > 0, "out of swappable memory");
+			framesUnpinned.sleep();
 		}
 		
-		if(!pagefreed)
-		{
-			while(!pagefreed)
-			{
-				page++;
-				if(page == Machine.processor().getNumPhysPages())
-					page = 0;
-				
-				if(page == startpage - 1)
-					break;
-				
-				ppage = swappablePages.get(page);
-				
-				if(!ppage.used && ppage.valid)
-					pagefreed = true;
-			}
-		}
+		Frame victim = frames[ppn];
+		Lib.assertTrue(victim.entry != null && victim.pinCount == 0);
 		
-		int swappage = freeSwapPages.get(page);
-		swapFile.seek(swappage * pageSize);
+		int pid = victim.pid, vpn = victim.vpn;
+		TranslationEntry entry = victim.entry;
+		Lib.debug(dbgVM, "Evicting page " + pid + "," + vpn + " from frame " + ppn);
 		
-		swapFile.write(Machine.processor().getMemory(), ppage.ppn * pageSize, pageSize);
+		// Nobody may use the page through a stale translation from here on.
+		entry.valid = false;
+		invalidateTLBEntry(ppn);
+		unlinkResident(victim);
+		victim.entry = null;
 		
 		pageTableLock.acquire();
-		swapPagePositions.put(new PageId(pid, ppage.ppn), swappage);
+		Integer swappage = swapPagePositions.get(pid, vpn);
+		boolean clean = (swappage != null && !entry.dirty);
+		if (swappage == null) {
+			swappage = swapSpace.allocate(1);
+			swapPagePositions.put(pid, vpn, swappage);
+		}
+		invertedPageTable.remove(pid, vpn);
+		pagesInSwap.put(pid, vpn, entry);
 		pageTableLock.release();
 		
-		pinnedPagesLock.release();
+		if (!clean) {
+			swapSpace.write(swappage, Machine.processor().getMemory(),
+					ppn * pageSize, 1);
+		}
+		Machine.processor().recordPageOut(!clean);
+		
+		frameTableLock.release();
+		
+		return ppn;
+	}
+	
+	/**
+	 * Tests whether a frame can be evicted without writing it to swap,
+	 * because it has not been written to since it was last read from there.
+	 */
+	boolean isClean(Frame frame) {
+		return !frame.entry.dirty &&
+			swapPagePositions.containsKey(frame.pid, frame.vpn);
+	}
+	
+	/**
+	 * The processor sets used and dirty bits in TLB entries, not in the
+	 * page table, so fold them into the frame table before the replacement
+	 * policy looks at it. The used bits in the TLB are cleared again, so
+	 * that the policy sees only references made since it last looked.
+	 */
+	private void syncTLBEntries() {
+		if (!Machine.processor().hasTLB())
+			return;
+		
+		for (int i=0; i<Machine.processor().getTLBSize(); i++) {
+			TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+			if (!tlbEntry.valid)
+				continue;
+			
+			foldTLBEntry(tlbEntry);
+			tlbEntry.used = false;
+			Machine.processor().writeTLBEntry(i, tlbEntry);
+		}
+	}
+	
+	/**
+	 * Folds the used and dirty bits of every TLB entry into the frame table
+	 * and invalidates the entries. Called on context switches, with
+	 * interrupts disabled, so that a page written through the TLB is never
+	 * taken for clean once its entry is gone.
+	 */
+	public void flushTLB() {
+		if (!Machine.processor().hasTLB())
+			return;
+		
+		for (int i=0; i<Machine.processor().getTLBSize(); i++) {
+			TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+			if (!tlbEntry.valid)
+				continue;
+			
+			foldTLBEntry(tlbEntry);
+			tlbEntry.valid = false;
+			Machine.processor().writeTLBEntry(i, tlbEntry);
+		}
+	}
+	
+	/**
+	 * Invalidates any TLB entry that maps the given physical page, keeping
+	 * its used and dirty bits.
+	 */
+	private void invalidateTLBEntry(int ppn) {
+		if (!Machine.processor().hasTLB())
+			return;
 		
-		return ppage.ppn;
+		for (int i=0; i<Machine.processor().getTLBSize(); i++) {
+			TranslationEntry tlbEntry = Machine.processor().readTLBEntry(i);
+			if (tlbEntry.valid && tlbEntry.ppn == ppn) {
+				foldTLBEntry(tlbEntry);
+				tlbEntry.valid = false;
+				Machine.processor().writeTLBEntry(i, tlbEntry);
+			}
+		}
+	}
+	
+	/**
+	 * Copies the used and dirty bits of a valid TLB entry to the page table
+	 * entry of the page in its frame.
+	 */
+	private void foldTLBEntry(TranslationEntry tlbEntry) {
+		Frame frame = frames[tlbEntry.ppn];
+		if (frame.entry != null) {
+			frame.entry.used |= tlbEntry.used;
+			frame.entry.dirty |= tlbEntry.dirty;
+		}
 	}
     
 	/**
@@ -229,6 +310,16 @@ public class VMKernel extends UserKernel {
 	 * @return a TranslationEntry corresponding to the new page.
 	 */
 	public TranslationEntry getFreePage(int pid, int vpn, boolean swappable, boolean readOnly){
+		TranslationEntry newPage = allocatePage(pid, vpn, swappable, readOnly);
+		Machine.processor().recordPageIn(false);
+		return newPage;
+	}
+	
+	/**
+	 * Does the work of <tt>getFreePage()</tt>, for it and for
+	 * <tt>swapInPage()</tt>.
+	 */
+	private TranslationEntry allocatePage(int pid, int vpn, boolean swappable, boolean readOnly){
         
 		int freePage;
 		// If there is any free space available, just take a page and set it up
@@ -236,46 +327,61 @@ public class VMKernel extends UserKernel {
 		if(super.numFreePages() > 0){
 			freePage = super.getFreePage();
 		}else{
-			freePage = swapOutPage(pid, vpn);
+			freePage = swapOutPage();
 		}
         
 		// Create a pagetable entry for the new free page.
 		TranslationEntry newPage = new TranslationEntry(vpn, freePage, true, readOnly, false, false);
         
-		// If the process requested a page that we are allowed to swap out,
-		// add this page to the list of swap-capable pages.
-		if(swappable){
-			swappablePages.add(newPage);
-		}
+		// Record the page in its frame. Only pages we are allowed to swap
+		// out are handed to the replacement policy.
+		frameTableLock.acquire();
+		Frame frame = frames[freePage];
+		frame.pid = pid;
+		frame.vpn = vpn;
+		frame.entry = newPage;
+		frame.swappable = swappable;
+		linkResident(frame);
+		if (swappable)
+			replacementPolicy.pageLoaded(freePage);
+		frameTableLock.release();
         
 		pageTableLock.acquire();
-		invertedPageTable.put(new PageId(pid, vpn), newPage);
+		invertedPageTable.put(pid, vpn, newPage);
 		pageTableLock.release();
 		return newPage;
 	}
     
         /**
-	 * Pins a page so that it cannot be swapped out.
+	 * Pins a page so that it cannot be swapped out. A page may be pinned
+	 * more than once, and stays pinned until it has been unpinned as many
+	 * times.
 	 * @param e a page to pin.
 	 */
 	public void pinPage(Integer e){
-		pinnedPagesLock.acquire();
-		pinnedPages.add(e);
-		pinnedPagesLock.release();
+		frameTableLock.acquire();
+		if (frames[e].pinCount++ == 0)
+			numPinnedFrames++;
+		frameTableLock.release();
 	}
 	
 	/**
-	 * Removes a page from the list of pinned pages.
+	 * Unpins a page, waking up anyone waiting for a page to swap out once it
+	 * is no longer pinned at all.
 	 * @param e the physical page to unpin.
 	 */
 	public void unPinPage(Integer e){
-		pinnedPagesLock.acquire();
-		pinnedPages.remove(e);
-		pinnedPagesLock.release();
+		frameTableLock.acquire();
+		Lib.assertTrue(frames[e].pinCount > 0);
+		if (--frames[e].pinCount == 0) {
+			numPinnedFrames--;
+			framesUnpinned.wakeAll();
+		}
+		frameTableLock.release();
 	}
     
 	public TranslationEntry lookupAddress(int pid, int vpn){
-		TranslationEntry page = invertedPageTable.get(new PageId(pid, vpn));
+		TranslationEntry page = invertedPageTable.get(pid, vpn);
 		return page;
 	}
     
@@ -286,87 +392,134 @@ public class VMKernel extends UserKernel {
 	 * @return true if the page is in the swapfile, false otherwise.
 	 */
 	public boolean isPageInSwap(int pid, int vpn){
-		return pagesInSwap.containsKey(new PageId(pid, vpn));
+		return pagesInSwap.containsKey(pid, vpn);
 	}
     
 	/**
 	 * Frees a physical page so that it may be reallocated to another process.
+	 * The frame table says whose page is in it, so nothing has to be
+	 * searched.
 	 */
 	public void free(int ppn){
+		frameTableLock.acquire();
+		if (frames[ppn].entry != null)
+			releaseFrame(frames[ppn]);
+		frameTableLock.release();
+	}
+	
+	/**
+	 * Frees every physical page and swap slot a process has, when it exits.
+	 * This takes time in proportion to the size of the process, not to the
+	 * number of pages in memory or in swap altogether.
+	 * @param pid the process id of the process.
+	 * @param numPages the number of pages in its address space.
+	 */
+	public void freeProcess(int pid, int numPages){
+		frameTableLock.acquire();
+		Frame frame;
+		while ((frame = residentPages.get(pid)) != null)
+			releaseFrame(frame);
+		
+		pageTableLock.acquire();
+		for (int vpn=0; vpn<numPages; vpn++) {
+			Integer swappage = swapPagePositions.remove(pid, vpn);
+			if (swappage != null)
+				swapSpace.free(swappage, 1);
+			pagesInSwap.remove(pid, vpn);
+		}
+		pageTableLock.release();
+		frameTableLock.release();
+	}
+	
+	/**
+	 * Unmaps the page in a frame and puts the frame on the free list. The
+	 * frame table lock must be held.
+	 */
+	private void releaseFrame(Frame frame){
+		if (frame.swappable)
+			replacementPolicy.pageFreed(frame.ppn);
+		unlinkResident(frame);
+		
+		frame.entry.valid = false;
+		invalidateTLBEntry(frame.ppn);
+		frame.entry = null;
+		
+		pageTableLock.acquire();
+		invertedPageTable.remove(frame.pid, frame.vpn);
+		pageTableLock.release();
+		
+		// The frame was in use, so it cannot be on the free list already.
 		freeListLock.acquire();
-		if(freePhysicalPages.contains(ppn)){
-			freeListLock.release();
-			return;
+		freePhysicalPages.add(frame.ppn);
+		freeListLock.release();
+	}
+	
+	/**
+	 * Adds a frame to the list of its process's resident pages. The frame
+	 * table lock must be held.
+	 */
+	private void linkResident(Frame frame){
+		Frame first = residentPages.get(frame.pid);
+		if (first == null) {
+			frame.prevResident = frame.nextResident = frame;
+			residentPages.put(frame.pid, frame);
 		}
-        
-		freePhysicalPages.add(ppn);
-        
-		// Un-map this page in our inverted page table.
-		PageId toRemove = null;
-		for(Map.Entry<PageId, TranslationEntry> e :
-			invertedPageTable.entrySet()){
-			if(e.getValue().ppn == ppn){
-				toRemove = e.getKey();
-				if(swappablePages.contains(e.getValue())){
-					swappablePages.remove(e.getValue());
-				}
-				break;
-			}
+		else {
+			frame.nextResident = first;
+			frame.prevResident = first.prevResident;
+			first.prevResident.nextResident = frame;
+			first.prevResident = frame;
 		}
-        
-		if(toRemove != null){
-			invertedPageTable.remove(toRemove);
+	}
+	
+	/**
+	 * Takes a frame off the list of its process's resident pages. The frame
+	 * table lock must be held.
+	 */
+	private void unlinkResident(Frame frame){
+		if (frame.nextResident == frame) {
+			residentPages.remove(frame.pid);
 		}
-        
-		freeListLock.release();
+		else {
+			frame.prevResident.nextResident = frame.nextResident;
+			frame.nextResident.prevResident = frame.prevResident;
+			if (residentPages.get(frame.pid) == frame)
+				residentPages.put(frame.pid, frame.nextResident);
+		}
+		frame.prevResident = frame.nextResident = null;
 	}
     
+	/**
+	 * The number of frames with a non-zero pin count.
+	 */
+	private int numPinnedFrames = 0;
+    
 	// dummy variables to make javac smarter
 	private static VMProcess dummy1 = null;
     
 	private static final char dbgVM = 'v';
     
 	/**
-	 * This class is used as a key into the inverted pagetable.
-	 * It overrides required functions equals() and hashCode()
-	 * so that it can be used properly as a key in the Java
-	 * hashmap class.
+	 * An entry in the frame table, describing what is in one physical page.
+	 * A frame with no entry is free.
 	 */
-	public class PageId {
+	public class Frame {
+		public Frame(int ppn){
+			this.ppn = ppn;
+		}
+		
+		/** The physical page number of this frame. */
+		public final int ppn;
+		/** The process and virtual page number of the page in this frame. */
 		public int pid;
 		public int vpn;
-        
-		public PageId(int pid, int vpn){
-			this.pid = pid;
-			this.vpn = vpn;
-		}
-        
-		/**
-		 * Uses the pre-made hashCode() function of the java String class
-		 * to generate a unique hash for this key.
-		 */
-		public int hashCode(){
-			return new String(pid + "#" + vpn).hashCode();
-		}
-        
-		/**
-		 * Compares two PageIds to each other. Returns true if the two
-		 * IDs have the same page number and PID.
-		 */
-		public boolean equals(Object obj){
-			if(!(obj instanceof PageId)){
-				return false;
-			}
-            
-			PageId p = (PageId) obj;
-			return (p.pid == pid) && (p.vpn == vpn);
-		}
-        
-		/**
-		 * Used help debugging, converts a PageId to a string.
-		 */
-		public String toString(){
-			return new String(pid + "," + vpn);
-		}
+		/** The translation for that page, shared with its owner. */
+		public TranslationEntry entry;
+		/** Whether the page may be written to swap and evicted. */
+		public boolean swappable;
+		/** The number of operations that need the page to stay put. */
+		public int pinCount;
+		/** The neighbours of this frame among its process's resident pages. */
+		Frame prevResident, nextResident;
 	}
-}
\ No newline at end of file
+}
@@ -2,7 +2,6 @@ package nachos.vm;
 
 import nachos.machine.*;
 import nachos.userprognew.*;
-import nachos.vm.VMKernel.PageId;
 
 import java.util.*;
 
@@ -27,6 +26,9 @@ public class VMProcess extends UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
+		// The TLB's used and dirty bits must reach the page table before the
+		// next process's translations replace them.
+		vmk.flushTLB();
 		super.saveState();
 	}
     
@@ -35,13 +37,10 @@ public class VMProcess extends UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
-		// Invalidate all TLB entries;
-		for(int i=0; i < Machine.processor().getTLBSize(); i++){
-			Lib.debug(dbgVM, "Invalidating TLB on context switch.");
-			TranslationEntry entry = Machine.processor().readTLBEntry(i);
-			entry.valid = false;
-			Machine.processor().writeTLBEntry(i, entry);
-		}
+		// Invalidate all TLB entries, in case the last process to run did not
+		// flush them itself.
+		Lib.debug(dbgVM, "Invalidating TLB on context switch.");
+		vmk.flushTLB();
 		
 		syncPageTable();
 	}
@@ -109,38 +108,11 @@ public class VMProcess extends UserProcess {
     
 	/**
 	 * Release any resources allocated by <tt>loadSections()</tt>.
-	 * First we free any physical pages the process has used, then we
-	 * un-map all of our pages from the global pagetable.
+	 * The kernel frees every physical page and swap slot the process has,
+	 * and un-maps its pages from the global pagetable.
 	 */
 	protected void unloadSections() {
-		// Collect a list of pages we need to free.
-		// We need to collect them first then free, since you can't
-		// modify a hashmap while iterating over it's contents.
-		ArrayList<Integer> toBeFreed = new ArrayList<Integer>();
-		for(Map.Entry<PageId, TranslationEntry> e :
-			vmk.invertedPageTable.entrySet()){
-			if(e.getKey().pid == super.getPid() &&
-               e.getValue().valid){
-				toBeFreed.add(e.getValue().ppn);
-			}
-		}
-		
-		// Free the collected pages.
-		for(Integer i : toBeFreed){
-			vmk.free(i);
-		}
-		
-		// Remove all of this process' page mappings from the kernel.
-		ArrayList<PageId> toBeRemoved = new ArrayList<PageId>();
-		for(PageId id : vmk.invertedPageTable.keySet()){
-			if(id.pid == super.getPid()){
-				toBeRemoved.add(id);
-			}
-		}
-        
-		for(PageId id : toBeRemoved){
-			vmk.invertedPageTable.remove(id);
-		}
+		vmk.freeProcess(super.getPid(), numPages);
 	}
 
     
@@ -0,0 +1,96 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The WSClock policy: a clock that evicts pages that have left their
+ * process's working set, that is, have not been used for more than
+ * <tt>WSClockPolicy.tau</tt> ticks of simulated time.
+ *
+ * <p>
+ * The time a page was last used is taken to be the last time the hand found
+ * its used bit set. A page outside the working set is evicted at once if it
+ * is clean. Nachos cannot write a dirty one back in the background while the
+ * hand moves on, so the first dirty one is kept as a fallback in case no
+ * clean one turns up. If no page has left the working set at all, the one
+ * unused for longest is evicted.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+	/**
+	 * Allocate a new WSClock policy.
+	 */
+	public WSClockPolicy() {
+	}
+
+	public void initialize(VMKernel kernel) {
+		super.initialize(kernel);
+
+		tracked = new boolean[frames.length];
+		lastUse = new long[frames.length];
+		tau = Config.getInteger("WSClockPolicy.tau", 20000);
+	}
+
+	public void pageLoaded(int ppn) {
+		tracked[ppn] = true;
+		lastUse[ppn] = Machine.timer().getTime();
+	}
+
+	public void pageFreed(int ppn) {
+		tracked[ppn] = false;
+	}
+
+	public int selectVictim() {
+		long now = Machine.timer().getTime();
+
+		// a second revolution is only needed if every page was just used
+		for (int rev = 0; rev < 2; rev++) {
+			int oldDirty = -1, oldest = -1;
+
+			for (int i = 0; i < frames.length; i++) {
+				int ppn = hand;
+				hand = (hand + 1) % frames.length;
+
+				if (!tracked[ppn] || !isEvictable(ppn))
+					continue;
+
+				if (testAndClearUsed(ppn)) {
+					lastUse[ppn] = now;
+					continue;
+				}
+
+				if (now - lastUse[ppn] > tau) {
+					if (isClean(ppn))
+						return evict(ppn);
+					if (oldDirty == -1)
+						oldDirty = ppn;
+				}
+				if (oldest == -1 || lastUse[ppn] < lastUse[oldest])
+					oldest = ppn;
+			}
+
+			if (oldDirty != -1)
+				return evict(oldDirty);
+			if (oldest != -1)
+				return evict(oldest);
+		}
+
+		return -1;
+	}
+
+	private int evict(int ppn) {
+		Lib.debug(dbgVM, "WSClock evicting frame " + ppn + ", unused for "
+				+ (Machine.timer().getTime() - lastUse[ppn]) + " ticks");
+
+		tracked[ppn] = false;
+		return ppn;
+	}
+
+	/** Which frames hold pages this policy manages. */
+	private boolean[] tracked;
+	/** When each frame's page was last seen to be used. */
+	private long[] lastUse;
+	/** The frame the hand will look at next. */
+	private int hand = 0;
+	/** The working set window, in ticks. */
+	private long tau;
+}